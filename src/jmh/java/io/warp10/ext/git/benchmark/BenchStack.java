@@ -0,0 +1,90 @@
+//
+//   Copyright 2021  SenX S.A.S.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+package io.warp10.ext.git.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.Map;
+import java.util.Properties;
+
+import io.warp10.WarpConfig;
+import io.warp10.ext.git.GitWarpScriptExtension;
+import io.warp10.script.MemoryWarpScriptStack;
+import io.warp10.script.WarpScriptException;
+import io.warp10.script.WarpScriptStack;
+import io.warp10.script.WarpScriptStackFunction;
+import io.warp10.warp.sdk.Capabilities;
+
+/**
+ * Configuration of Warp 10 and creation of the stacks the benchmarks call the functions on.
+ *
+ * This is the only class relying on parts of Warp 10 which are not used by the extension itself
+ * (loading of the configuration, stack implementation, storage of the capabilities in the stack),
+ * it is the one to adapt if those change in a new Warp 10 release.
+ */
+public class BenchStack {
+
+  private static Map<String,Object> functions = null;
+
+  /**
+   * Load the Warp 10 configuration, must be called once per JVM before any function is used
+   *
+   * @param root Directory used as git.root
+   * @param conf Additional configuration of the extension
+   */
+  public static synchronized void configure(File root, Map<String,String> conf) throws IOException {
+    StringBuilder sb = new StringBuilder();
+
+    sb.append("warp.timeunits = us\n");
+    sb.append(GitWarpScriptExtension.CONF_ROOT).append(" = ").append(root.getAbsolutePath()).append("\n");
+
+    for (Map.Entry<String,String> entry: conf.entrySet()) {
+      sb.append(entry.getKey()).append(" = ").append(entry.getValue()).append("\n");
+    }
+
+    WarpConfig.safeSetProperties(new StringReader(sb.toString()));
+
+    functions = new GitWarpScriptExtension().getFunctions();
+  }
+
+  /**
+   * Create a stack holding the capabilities for a repository
+   */
+  public static WarpScriptStack create(Map<String,String> capabilities) {
+    MemoryWarpScriptStack stack = new MemoryWarpScriptStack(null, null, new Properties());
+    stack.maxLimits();
+
+    Capabilities caps = new Capabilities();
+
+    for (Map.Entry<String,String> entry: capabilities.entrySet()) {
+      caps.putIfAbsent(entry.getKey(), entry.getValue());
+    }
+
+    stack.setAttribute(WarpScriptStack.CAPABILITIES_ATTR, caps);
+
+    return stack;
+  }
+
+  /**
+   * Call a function of the extension with a parameter map and return its result
+   */
+  public static Object call(WarpScriptStack stack, String function, Map<Object,Object> params) throws WarpScriptException {
+    stack.push(params);
+    ((WarpScriptStackFunction) functions.get(function)).apply(stack);
+    return stack.pop();
+  }
+}
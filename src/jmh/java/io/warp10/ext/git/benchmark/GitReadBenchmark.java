@@ -0,0 +1,167 @@
+//
+//   Copyright 2021  SenX S.A.S.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+package io.warp10.ext.git.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import io.warp10.ext.git.GitWarpScriptExtension;
+import io.warp10.script.WarpScriptException;
+import io.warp10.script.WarpScriptStack;
+
+/**
+ * Benchmarks of the read functions (GITLOAD, GITFIND, GITLOG) on a synthetic repository.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class GitReadBenchmark {
+
+  public static final String REPO = "bench.git";
+
+  @Param({ "1000" })
+  public int files;
+
+  @Param({ "3" })
+  public int depth;
+
+  @Param({ "500" })
+  public int history;
+
+  @Param({ "10" })
+  public int tags;
+
+  @Param({ "1024" })
+  public int blobsize;
+
+  private File root;
+  private List<String> paths;
+
+  /**
+   * Per thread stack and random generator
+   */
+  @State(Scope.Thread)
+  public static class Caller {
+    private WarpScriptStack stack;
+    private Random random;
+
+    @Setup(Level.Trial)
+    public void setup(GitReadBenchmark bench) {
+      Map<String,String> capabilities = new HashMap<String,String>();
+      capabilities.put(GitWarpScriptExtension.CAP_GITREPO, REPO);
+      this.stack = BenchStack.create(capabilities);
+      this.random = new Random(Thread.currentThread().getId());
+    }
+  }
+
+  @Setup(Level.Trial)
+  public void setup() throws IOException {
+    this.root = Files.createTempDirectory("warp10-ext-git-bench").toFile();
+    BenchStack.configure(this.root, new HashMap<String,String>());
+    this.paths = new SyntheticRepository(this.files, this.depth, this.history, this.tags, this.blobsize, 0L).create(new File(this.root, REPO));
+  }
+
+  @TearDown(Level.Trial)
+  public void teardown() {
+    SyntheticRepository.delete(this.root);
+  }
+
+  private String path(Caller caller) {
+    return this.paths.get(caller.random.nextInt(this.paths.size()));
+  }
+
+  private Map<Object,Object> params() {
+    Map<Object,Object> params = new HashMap<Object,Object>();
+    params.put(GitWarpScriptExtension.PARAM_REPO, REPO);
+    return params;
+  }
+
+  @Benchmark
+  public Object gitload(Caller caller) throws WarpScriptException {
+    Map<Object,Object> params = params();
+    params.put(GitWarpScriptExtension.PARAM_PATH, path(caller));
+    return BenchStack.call(caller.stack, GitWarpScriptExtension.GITLOAD, params);
+  }
+
+  @Benchmark
+  public Object gitloadMany(Caller caller) throws WarpScriptException {
+    List<String> pathes = new ArrayList<String>();
+    for (int i = 0; i < 50; i++) {
+      pathes.add(path(caller));
+    }
+    Map<Object,Object> params = params();
+    params.put(GitWarpScriptExtension.PARAM_PATH, pathes);
+    return BenchStack.call(caller.stack, GitWarpScriptExtension.GITLOAD, params);
+  }
+
+  @Benchmark
+  @Threads(4)
+  public Object gitloadConcurrent(Caller caller) throws WarpScriptException {
+    return gitload(caller);
+  }
+
+  @Benchmark
+  public Object gitfind(Caller caller) throws WarpScriptException {
+    return BenchStack.call(caller.stack, GitWarpScriptExtension.GITFIND, params());
+  }
+
+  @Benchmark
+  public Object gitfindRegexp(Caller caller) throws WarpScriptException {
+    // Only the files of one top level directory match
+    Map<Object,Object> params = params();
+    params.put(GitWarpScriptExtension.PARAM_REGEXP, "d0_" + caller.random.nextInt(16) + "/.*");
+    return BenchStack.call(caller.stack, GitWarpScriptExtension.GITFIND, params);
+  }
+
+  @Benchmark
+  public Object gitlog(Caller caller) throws WarpScriptException {
+    Map<Object,Object> params = params();
+    params.put(GitWarpScriptExtension.PARAM_COUNT, 100L);
+    return BenchStack.call(caller.stack, GitWarpScriptExtension.GITLOG, params);
+  }
+
+  @Benchmark
+  public Object gitlogPath(Caller caller) throws WarpScriptException {
+    Map<Object,Object> params = params();
+    params.put(GitWarpScriptExtension.PARAM_PATH, path(caller));
+    return BenchStack.call(caller.stack, GitWarpScriptExtension.GITLOG, params);
+  }
+}
@@ -0,0 +1,194 @@
+//
+//   Copyright 2021  SenX S.A.S.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+package io.warp10.ext.git.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import io.warp10.ext.git.GitWarpScriptExtension;
+import io.warp10.script.WarpScriptException;
+import io.warp10.script.WarpScriptStack;
+
+/**
+ * Benchmarks of the write functions (GITSTORE, GITRM, GITTAG) on a synthetic repository,
+ * with one or several concurrent writers.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class GitWriteBenchmark {
+
+  public static final String REPO = "bench.git";
+
+  @Param({ "1000" })
+  public int files;
+
+  @Param({ "3" })
+  public int depth;
+
+  @Param({ "1024" })
+  public int blobsize;
+
+  /**
+   * Delay in ms during which concurrent writes are grouped, see git.write.window
+   */
+  @Param({ "0" })
+  public int window;
+
+  private File root;
+  private SyntheticRepository synthetic;
+  private List<String> paths;
+
+  private final AtomicInteger callers = new AtomicInteger(0);
+
+  /**
+   * Per thread stack, each thread commits under its own author name so its writes are not
+   * grouped with those of the other threads unless 'grouped' is used
+   */
+  @State(Scope.Thread)
+  public static class Caller {
+    private WarpScriptStack stack;
+    private WarpScriptStack shared;
+    private Random random;
+    private int id;
+    private int count = 0;
+
+    @Setup(Level.Trial)
+    public void setup(GitWriteBenchmark bench) {
+      this.id = bench.callers.incrementAndGet();
+
+      Map<String,String> capabilities = new HashMap<String,String>();
+      capabilities.put(GitWarpScriptExtension.CAP_GITREPO, REPO);
+      this.shared = BenchStack.create(capabilities);
+
+      capabilities.put(GitWarpScriptExtension.CAP_GITNAME, "writer-" + this.id);
+      this.stack = BenchStack.create(capabilities);
+
+      this.random = new Random(this.id);
+    }
+  }
+
+  @Setup(Level.Trial)
+  public void setup() throws IOException {
+    this.root = Files.createTempDirectory("warp10-ext-git-bench").toFile();
+
+    Map<String,String> conf = new HashMap<String,String>();
+    conf.put(GitWarpScriptExtension.CONF_WRITE_WINDOW, Integer.toString(this.window));
+    BenchStack.configure(this.root, conf);
+
+    this.synthetic = new SyntheticRepository(this.files, this.depth, 1, 0, this.blobsize, 0L);
+    this.paths = this.synthetic.create(new File(this.root, REPO));
+  }
+
+  @TearDown(Level.Trial)
+  public void teardown() {
+    SyntheticRepository.delete(this.root);
+  }
+
+  private Object store(Caller caller, WarpScriptStack stack) throws WarpScriptException {
+    Map<Object,Object> params = new HashMap<Object,Object>();
+    params.put(GitWarpScriptExtension.PARAM_REPO, REPO);
+    params.put(GitWarpScriptExtension.PARAM_PATH, this.paths.get(caller.random.nextInt(this.paths.size())));
+    params.put(GitWarpScriptExtension.PARAM_CONTENT, this.synthetic.content(caller.random));
+    params.put(GitWarpScriptExtension.PARAM_MESSAGE, "Store");
+    return BenchStack.call(stack, GitWarpScriptExtension.GITSTORE, params);
+  }
+
+  @Benchmark
+  public Object gitstore(Caller caller) throws WarpScriptException {
+    return store(caller, caller.stack);
+  }
+
+  @Benchmark
+  @Threads(8)
+  public Object gitstoreConcurrent(Caller caller) throws WarpScriptException {
+    return store(caller, caller.stack);
+  }
+
+  /**
+   * Concurrent writes by the same author, which the write queue groups into a single commit
+   */
+  @Benchmark
+  @Threads(8)
+  public Object gitstoreGrouped(Caller caller) throws WarpScriptException {
+    return store(caller, caller.shared);
+  }
+
+  /**
+   * Store then remove a file private to the caller, so the removal always changes the tree
+   */
+  @Benchmark
+  public Object gitrm(Caller caller) throws WarpScriptException {
+    String path = "rm/" + caller.id + "/f" + (caller.count++);
+
+    Map<Object,Object> params = new HashMap<Object,Object>();
+    params.put(GitWarpScriptExtension.PARAM_REPO, REPO);
+    params.put(GitWarpScriptExtension.PARAM_PATH, path);
+    params.put(GitWarpScriptExtension.PARAM_CONTENT, this.synthetic.content(caller.random));
+    params.put(GitWarpScriptExtension.PARAM_MESSAGE, "Store");
+    BenchStack.call(caller.stack, GitWarpScriptExtension.GITSTORE, params);
+
+    params.remove(GitWarpScriptExtension.PARAM_CONTENT);
+    params.put(GitWarpScriptExtension.PARAM_MESSAGE, "Remove");
+    return BenchStack.call(caller.stack, GitWarpScriptExtension.GITRM, params);
+  }
+
+  @Benchmark
+  @Threads(8)
+  public Object gitrmConcurrent(Caller caller) throws WarpScriptException {
+    return gitrm(caller);
+  }
+
+  @Benchmark
+  public Object gittag(Caller caller) throws WarpScriptException {
+    Map<Object,Object> params = new HashMap<Object,Object>();
+    params.put(GitWarpScriptExtension.PARAM_REPO, REPO);
+    params.put(GitWarpScriptExtension.PARAM_TAG, "t" + caller.id + "-" + (caller.count++));
+    params.put(GitWarpScriptExtension.PARAM_MESSAGE, "Tag");
+    return BenchStack.call(caller.stack, GitWarpScriptExtension.GITTAG, params);
+  }
+
+  @Benchmark
+  @Threads(4)
+  public Object gittagConcurrent(Caller caller) throws WarpScriptException {
+    return gittag(caller);
+  }
+}
@@ -0,0 +1,170 @@
+//
+//   Copyright 2021  SenX S.A.S.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+package io.warp10.ext.git.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.PersonIdent;
+import org.eclipse.jgit.revwalk.RevWalk;
+
+import io.warp10.ext.git.GitCommitter;
+
+/**
+ * Generator of bare repositories of a given shape, used as benchmark and stress fixtures.
+ *
+ * The content is derived from a seed so two repositories generated with the same parameters
+ * have the same files, only the commit timestamps differ.
+ */
+public class SyntheticRepository {
+
+  /**
+   * Number of entries per directory level
+   */
+  private static final int FANOUT = 16;
+
+  private final int files;
+  private final int depth;
+  private final int history;
+  private final int tags;
+  private final int blobsize;
+  private final long seed;
+
+  /**
+   * @param files Number of files in the repository
+   * @param depth Number of directory levels above each file
+   * @param history Number of commits, the first one adds all the files, each of the others modifies one file
+   * @param tags Number of annotated tags, spread over the history
+   * @param blobsize Size in bytes of each file
+   * @param seed Seed of the generated content
+   */
+  public SyntheticRepository(int files, int depth, int history, int tags, int blobsize, long seed) {
+    this.files = files;
+    this.depth = depth;
+    this.history = Math.max(1, history);
+    this.tags = tags;
+    this.blobsize = blobsize;
+    this.seed = seed;
+  }
+
+  /**
+   * Path of the i-th file, directories are named after the successive base 16 digits of i
+   */
+  public String path(int i) {
+    StringBuilder sb = new StringBuilder();
+
+    int n = i;
+
+    for (int level = 0; level < this.depth; level++) {
+      sb.append('d').append(level).append('_').append(n % FANOUT).append('/');
+      n /= FANOUT;
+    }
+
+    sb.append('f').append(i);
+
+    return sb.toString();
+  }
+
+  public List<String> paths() {
+    List<String> paths = new ArrayList<String>(this.files);
+
+    for (int i = 0; i < this.files; i++) {
+      paths.add(path(i));
+    }
+
+    return Collections.unmodifiableList(paths);
+  }
+
+  /**
+   * Random printable content, so it compresses like text
+   */
+  public byte[] content(Random random) {
+    byte[] content = new byte[this.blobsize];
+
+    for (int i = 0; i < content.length; i++) {
+      content[i] = (byte) (' ' + random.nextInt(95));
+    }
+
+    return content;
+  }
+
+  /**
+   * Create the repository in a directory which must not exist
+   *
+   * @return The paths of the files of the repository
+   */
+  public List<String> create(File dir) throws IOException {
+    Random random = new Random(this.seed);
+    PersonIdent author = new PersonIdent("synthetic", "synthetic@warp10.io");
+
+    try (Git git = Git.init().setBare(true).setDirectory(dir).call()) {
+      Map<String,byte[]> changes = new LinkedHashMap<String,byte[]>();
+
+      for (int i = 0; i < this.files; i++) {
+        changes.put(path(i), content(random));
+      }
+
+      List<ObjectId> commits = new ArrayList<ObjectId>(this.history);
+
+      commits.add(GitCommitter.commit(git.getRepository(), changes, author, author, "Initial commit"));
+
+      for (int c = 1; c < this.history; c++) {
+        int i = random.nextInt(this.files);
+        ObjectId commit = GitCommitter.commit(git.getRepository(), Collections.singletonMap(path(i), content(random)), author, author, "Update f" + i);
+        // No commit is created if the content did not change
+        if (null != commit) {
+          commits.add(commit);
+        }
+      }
+
+      try (RevWalk rwalk = new RevWalk(git.getRepository())) {
+        for (int t = 0; t < this.tags; t++) {
+          ObjectId commit = commits.get((int) ((long) t * commits.size() / this.tags));
+          git.tag().setName("v" + t).setMessage("Tag v" + t).setTagger(author).setObjectId(rwalk.parseCommit(commit)).call();
+        }
+      }
+    } catch (IOException ioe) {
+      throw ioe;
+    } catch (Exception e) {
+      throw new IOException("Unable to create synthetic repository.", e);
+    }
+
+    return paths();
+  }
+
+  /**
+   * Remove a directory and its content
+   */
+  public static void delete(File file) {
+    File[] children = file.listFiles();
+
+    if (null != children) {
+      for (File child: children) {
+        delete(child);
+      }
+    }
+
+    file.delete();
+  }
+}
@@ -0,0 +1,167 @@
+//
+//   Copyright 2021  SenX S.A.S.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.ext.git;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.FileMode;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.treewalk.TreeWalk;
+import org.eclipse.jgit.treewalk.filter.AndTreeFilter;
+import org.eclipse.jgit.treewalk.filter.PathFilter;
+import org.eclipse.jgit.treewalk.filter.TreeFilter;
+
+import io.warp10.script.NamedWarpScriptFunction;
+import io.warp10.script.WarpScriptException;
+import io.warp10.script.WarpScriptStack;
+import io.warp10.script.WarpScriptStackFunction;
+
+/**
+ * Lists the paths added, modified or deleted between two revisions.
+ *
+ * Only the trees are compared, subtrees with identical ids are skipped and no content is read.
+ */
+public class GITCHANGES extends NamedWarpScriptFunction implements WarpScriptStackFunction {
+
+  public static final String CHANGE_ADD = "add";
+  public static final String CHANGE_MODIFY = "modify";
+  public static final String CHANGE_DELETE = "delete";
+
+  public GITCHANGES(String name) {
+    super(name);
+  }
+
+  @Override
+  public Object apply(WarpScriptStack stack) throws WarpScriptException {
+
+    Object top = stack.pop();
+
+    if (!(top instanceof Map)) {
+      throw new WarpScriptException(getName() + " expects a parameter MAP.");
+    }
+
+    Map<Object,Object> params = (Map<Object,Object>) top;
+
+    if (!(params.get(GitWarpScriptExtension.PARAM_FROM) instanceof String)) {
+      throw new WarpScriptException(getName() + " unset revision under key '" + GitWarpScriptExtension.PARAM_FROM + "'.");
+    }
+
+    String from = (String) params.get(GitWarpScriptExtension.PARAM_FROM);
+
+    String to = Constants.HEAD;
+
+    if (params.get(GitWarpScriptExtension.PARAM_TO) instanceof String) {
+      to = (String) params.get(GitWarpScriptExtension.PARAM_TO);
+    }
+
+    //
+    // Check that the stack has the right capability, a session was checked when it was opened
+    //
+
+    GitSession session = GitSession.get(stack, getName(), params.get(GitWarpScriptExtension.PARAM_REPO));
+    String repo = session.getRepo();
+    Map<String,String> capabilities = session.getCapabilities();
+
+    String subdir = capabilities.get(GitWarpScriptExtension.CAP_GITSUBDIR);
+
+    GitRepositoryCache.Handle handle = null;
+
+    try {
+      handle = session.acquire();
+      Repository repository = handle.getRepository();
+
+      ObjectId fromId = session.resolve(repository, from);
+
+      if (null == fromId) {
+        throw new WarpScriptException(getName() + " revision '" + from + "' was not found in repository '" + repo + "'.");
+      }
+
+      ObjectId toId = session.resolve(repository, to);
+
+      if (null == toId) {
+        throw new WarpScriptException(getName() + " revision '" + to + "' was not found in repository '" + repo + "'.");
+      }
+
+      List<Object> changes = new ArrayList<Object>();
+
+      try (RevWalk rwalk = new RevWalk(repository); TreeWalk twalk = new TreeWalk(rwalk.getObjectReader())) {
+        twalk.addTree(rwalk.parseCommit(fromId).getTree());
+        twalk.addTree(rwalk.parseCommit(toId).getTree());
+        twalk.setRecursive(true);
+
+        // Subtrees with the same id in both revisions are not entered
+        if (null == subdir) {
+          twalk.setFilter(TreeFilter.ANY_DIFF);
+        } else {
+          twalk.setFilter(AndTreeFilter.create(PathFilter.create(subdir), TreeFilter.ANY_DIFF));
+        }
+
+        while (twalk.next()) {
+          // The filter also matches a file whose path is the subdir itself, it is not below the subdir
+          if (null != subdir && twalk.getPathString().length() == subdir.length()) {
+            continue;
+          }
+
+          FileMode before = twalk.getFileMode(0);
+          FileMode after = twalk.getFileMode(1);
+
+          Map<Object,Object> change = new LinkedHashMap<Object,Object>();
+
+          change.put(GitWarpScriptExtension.INFOS_PATH, null == subdir ? twalk.getPathString() : twalk.getPathString().substring(subdir.length() + 1));
+
+          if (FileMode.MISSING.equals(before)) {
+            change.put(GitWarpScriptExtension.INFOS_CHANGE, CHANGE_ADD);
+            change.put(GitWarpScriptExtension.INFOS_ID, twalk.getObjectId(1).name());
+          } else if (FileMode.MISSING.equals(after)) {
+            change.put(GitWarpScriptExtension.INFOS_CHANGE, CHANGE_DELETE);
+            change.put(GitWarpScriptExtension.INFOS_ID, null);
+          } else {
+            change.put(GitWarpScriptExtension.INFOS_CHANGE, CHANGE_MODIFY);
+            change.put(GitWarpScriptExtension.INFOS_ID, twalk.getObjectId(1).name());
+          }
+
+          changes.add(change);
+        }
+      }
+
+      Map<Object,Object> result = new LinkedHashMap<Object,Object>();
+      result.put(GitWarpScriptExtension.INFOS_FROM, fromId.name());
+      result.put(GitWarpScriptExtension.INFOS_TO, toId.name());
+      result.put(GitWarpScriptExtension.INFOS_CHANGES, changes);
+
+      GitMetrics.entries(changes.size());
+
+      stack.push(result);
+    } catch (WarpScriptException wse) {
+      throw wse;
+    } catch (Exception e) {
+      throw GitWarpScriptExtension.error(getName() + " error opening Git repository '" + repo + "'", e);
+    } finally {
+      if (null != handle) {
+        handle.close();
+      }
+    }
+
+    return stack;
+  }
+}
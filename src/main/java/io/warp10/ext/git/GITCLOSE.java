@@ -0,0 +1,46 @@
+//
+//   Copyright 2021  SenX S.A.S.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+package io.warp10.ext.git;
+
+import io.warp10.script.NamedWarpScriptFunction;
+import io.warp10.script.WarpScriptException;
+import io.warp10.script.WarpScriptStack;
+import io.warp10.script.WarpScriptStackFunction;
+
+/**
+ * Closes a session opened by GITOPEN.
+ */
+public class GITCLOSE extends NamedWarpScriptFunction implements WarpScriptStackFunction {
+
+  public GITCLOSE(String name) {
+    super(name);
+  }
+
+  @Override
+  public Object apply(WarpScriptStack stack) throws WarpScriptException {
+
+    Object top = stack.pop();
+
+    if (!(top instanceof GitSession)) {
+      throw new WarpScriptException(getName() + " expects a session opened by " + GitWarpScriptExtension.GITOPEN + ".");
+    }
+
+    // Closing a session twice is harmless, closing the session of another stack is not
+    ((GitSession) top).close(stack, getName());
+
+    return stack;
+  }
+}
@@ -16,30 +16,30 @@
 
 package io.warp10.ext.git;
 
-import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.Set;
 
 import org.eclipse.jgit.api.Git;
-import org.eclipse.jgit.errors.IncorrectObjectTypeException;
-import org.eclipse.jgit.errors.MissingObjectException;
+import org.eclipse.jgit.lib.AsyncObjectSizeQueue;
 import org.eclipse.jgit.lib.Constants;
 import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectReader;
 import org.eclipse.jgit.revwalk.RevCommit;
 import org.eclipse.jgit.revwalk.RevTree;
 import org.eclipse.jgit.revwalk.RevWalk;
 import org.eclipse.jgit.treewalk.TreeWalk;
-import org.eclipse.jgit.treewalk.filter.TreeFilter;
 
 import io.warp10.script.NamedWarpScriptFunction;
 import io.warp10.script.WarpScriptException;
 import io.warp10.script.WarpScriptStack;
 import io.warp10.script.WarpScriptStackFunction;
-import io.warp10.warp.sdk.Capabilities;
 
 public class GITFIND extends NamedWarpScriptFunction implements WarpScriptStackFunction {
 
@@ -64,105 +64,163 @@ public class GITFIND extends NamedWarpScriptFunction implements WarpScriptStackF
 
     String filter = (String) params.get(GitWarpScriptExtension.PARAM_REGEXP);
 
-    if (!(params.get(GitWarpScriptExtension.PARAM_REPO) instanceof String)) {
-      throw new WarpScriptException(getName() + " unset repository under key '" + GitWarpScriptExtension.PARAM_REPO + "'.");
+    String rev = Constants.HEAD;
+
+    if (params.get(GitWarpScriptExtension.PARAM_REV) instanceof String) {
+      rev = (String) params.get(GitWarpScriptExtension.PARAM_REV);
     }
 
-    String repo = (String) params.get(GitWarpScriptExtension.PARAM_REPO);
+    boolean withrev = Boolean.TRUE.equals(params.get(GitWarpScriptExtension.PARAM_WITHREV));
+    boolean metadata = Boolean.TRUE.equals(params.get(GitWarpScriptExtension.PARAM_METADATA));
 
     //
-    // Check that the root is configured and that the stack has the correct capability
+    // Check that the stack has the right capability, a session was checked when it was opened
     //
 
-    if (null == GitWarpScriptExtension.getRoot()) {
-      throw new WarpScriptException(getName() + " Git root was not configured.");
-    }
+    GitSession session = GitSession.get(stack, getName(), params.get(GitWarpScriptExtension.PARAM_REPO));
+    String repo = session.getRepo();
+    Map<String,String> capabilities = session.getCapabilities();
 
-    //
-    // Check that the stack has the right capability
-    //
-    Map<String,String> capabilities = Capabilities.get(stack, (List) null);
+    String subdir = capabilities.get(GitWarpScriptExtension.CAP_GITSUBDIR);
 
-    if (!repo.equals(capabilities.get(GitWarpScriptExtension.CAP_GITREPO))) {
-      throw new WarpScriptException(getName() + " missing or invalid '" + GitWarpScriptExtension.CAP_GITREPO + "' capability.");
-    }
+    filter = GitRegexpTreeFilter.scope(filter, subdir);
 
-    String subdir = capabilities.get(GitWarpScriptExtension.CAP_GITSUBDIR);
+    GitRepositoryCache.Handle handle = null;
 
-    if (null != subdir) {
-      if (null == filter) {
-        filter = subdir + "/.*";
-      } else {
-        if (filter.startsWith("^")) {
-          filter = "^" + Pattern.quote(subdir) + "/" + filter.substring(1);
-        } else {
-          filter = Pattern.quote(subdir) + "/" + filter;
-        }
-      }
-    }
+    try {
+      handle = session.acquire();
+      Git git = handle.getGit();
 
-    Git git = null;
+      // find the requested revision
+      ObjectId lastCommitId = session.resolve(git.getRepository(), rev);
 
-    final String ffilter = filter;
+      if (null == lastCommitId) {
+        throw new WarpScriptException(getName() + " revision '" + rev + "' was not found in repository '" + repo + "'.");
+      }
 
-    try {
-      git = Git.open(new File(GitWarpScriptExtension.getRoot(), repo));
+      List<Object> entries;
+
+      try (RevWalk rwalk = new RevWalk(git.getRepository())) {
+        RevCommit commit = rwalk.parseCommit(lastCommitId);
+        RevTree tree = commit.getTree();
 
-      // find the HEAD
-      ObjectId lastCommitId = git.getRepository().resolve(Constants.HEAD);
+        //
+        // A tree id fully determines the listing, so cached listings never need to be invalidated.
+        // The cached paths are relative to the subdir, so the subdir is part of the key alongside
+        // the effective regexp.
+        //
 
-      List<String> entries = new ArrayList<String>();
+        StringBuilder sb = new StringBuilder(tree.name());
 
-      RevWalk rwalk = new RevWalk(git.getRepository());
-      RevCommit commit = rwalk.parseCommit(lastCommitId);
-      RevTree tree = commit.getTree();
-      TreeWalk twalk = new TreeWalk(git.getRepository());
-      twalk.addTree(tree);
-      twalk.setRecursive(true);
-      twalk.setFilter(null == ffilter ? TreeFilter.ALL : new TreeFilter() {
+        if (null != subdir) {
+          sb.append("\0subdir=").append(subdir);
+        }
 
-        Matcher matcher = Pattern.compile(ffilter).matcher("");
+        if (null != filter) {
+          sb.append("\0regexp=").append(filter);
+        }
 
-        @Override
-        public boolean shouldBeRecursive() { return true; }
-        @Override
-        public boolean include(TreeWalk walker) throws MissingObjectException, IncorrectObjectTypeException, IOException {
-          if (walker.getRawPath()[walker.getPathLength() - 1] == '/') {
-            return true;
+        String key = sb.toString();
+
+        List<GitTreeEntry> listing = GitWarpScriptExtension.getListingCache().get(key);
+
+        if (null == listing) {
+          listing = new ArrayList<GitTreeEntry>();
+
+          try (TreeWalk twalk = new TreeWalk(rwalk.getObjectReader())) {
+            twalk.addTree(tree);
+            twalk.setRecursive(true);
+            // Subtrees which cannot contain matching paths are not walked
+            twalk.setFilter(GitRegexpTreeFilter.create(filter, subdir));
+
+            while(twalk.next()) {
+              String path = twalk.getPathString();
+              if (null != subdir) {
+                if (!path.startsWith(subdir + "/")) {
+                  continue;
+                }
+                path = path.substring(subdir.length() + 1);
+              }
+              listing.add(new GitTreeEntry(path, twalk.getObjectId(0), twalk.getFileMode(0)));
+            }
           }
 
-          if (walker.isSubtree()) {
-            return true;
-          }
-          String path = walker.getPathString();
+          GitMetrics.entries(listing.size());
 
-          return matcher.reset(path).matches();
+          listing = Collections.unmodifiableList(listing);
+          GitWarpScriptExtension.getListingCache().put(key, listing);
         }
 
-        @Override
-        public TreeFilter clone() { return null; }
-      });
+        // The returned list may be modified by the caller
+        entries = new ArrayList<Object>(listing.size());
 
-      while(twalk.next()) {
-        if (null != subdir) {
-          entries.add(twalk.getPathString().substring(subdir.length() + 1));
+        if (metadata) {
+          Map<ObjectId,Long> sizes = sizes(rwalk.getObjectReader(), listing);
+
+          for (GitTreeEntry entry: listing) {
+            Map<Object,Object> meta = new LinkedHashMap<Object,Object>();
+            meta.put(GitWarpScriptExtension.INFOS_PATH, entry.getPath());
+            meta.put(GitWarpScriptExtension.INFOS_ID, entry.getId().name());
+            meta.put(GitWarpScriptExtension.INFOS_MODE, entry.getModeString());
+            meta.put(GitWarpScriptExtension.INFOS_SIZE, sizes.get(entry.getId()));
+            entries.add(meta);
+          }
         } else {
-          entries.add(twalk.getPathString());
+          for (GitTreeEntry entry: listing) {
+            entries.add(entry.getPath());
+          }
         }
       }
 
-      twalk.close();
-      rwalk.dispose();
-
-      stack.push(entries);
+      if (withrev) {
+        Map<Object,Object> result = new LinkedHashMap<Object,Object>();
+        result.put(GitWarpScriptExtension.INFOS_REV, lastCommitId.name());
+        result.put(GitWarpScriptExtension.INFOS_FILES, entries);
+        stack.push(result);
+      } else {
+        stack.push(entries);
+      }
+    } catch (WarpScriptException wse) {
+      throw wse;
     } catch (Exception e) {
-      throw new WarpScriptException(getName() + " error opening Git repository.", e);
+      throw GitWarpScriptExtension.error(getName() + " error opening Git repository '" + repo + "'", e);
     } finally {
-      if (null != git) {
-        git.close();
+      if (null != handle) {
+        handle.close();
       }
     }
 
     return stack;
   }
+
+  /**
+   * Read the sizes of the blobs of a listing from the object headers, without inflating their content.
+   * Entries which are not blobs (i.e. submodules) have no size.
+   */
+  private static Map<ObjectId,Long> sizes(ObjectReader reader, List<GitTreeEntry> listing) throws IOException {
+    Set<ObjectId> ids = new LinkedHashSet<ObjectId>();
+
+    for (GitTreeEntry entry: listing) {
+      if (Constants.OBJ_BLOB == entry.getMode().getObjectType()) {
+        ids.add(entry.getId());
+      }
+    }
+
+    Map<ObjectId,Long> sizes = new HashMap<ObjectId,Long>();
+
+    if (ids.isEmpty()) {
+      return sizes;
+    }
+
+    AsyncObjectSizeQueue<ObjectId> queue = reader.getObjectSize(ids, true);
+    try {
+      while (queue.next()) {
+        sizes.put(queue.getObjectId().copy(), queue.getSize());
+      }
+    } finally {
+      queue.release();
+    }
+
+    return sizes;
+  }
 }
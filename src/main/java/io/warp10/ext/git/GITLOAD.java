@@ -16,25 +16,37 @@
 
 package io.warp10.ext.git;
 
-import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
-import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.lib.AsyncObjectLoaderQueue;
 import org.eclipse.jgit.lib.Constants;
 import org.eclipse.jgit.lib.ObjectId;
 import org.eclipse.jgit.lib.ObjectLoader;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.lib.ObjectStream;
+import org.eclipse.jgit.lib.Repository;
 import org.eclipse.jgit.revwalk.RevCommit;
 import org.eclipse.jgit.revwalk.RevTree;
 import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.revwalk.filter.CommitTimeRevFilter;
 import org.eclipse.jgit.treewalk.TreeWalk;
+import org.eclipse.jgit.treewalk.filter.AndTreeFilter;
 import org.eclipse.jgit.treewalk.filter.PathFilter;
+import org.eclipse.jgit.treewalk.filter.PathFilterGroup;
+import org.eclipse.jgit.treewalk.filter.TreeFilter;
+import org.eclipse.jgit.util.IO;
 
 import io.warp10.script.NamedWarpScriptFunction;
 import io.warp10.script.WarpScriptException;
 import io.warp10.script.WarpScriptStack;
 import io.warp10.script.WarpScriptStackFunction;
-import io.warp10.warp.sdk.Capabilities;
 
 public class GITLOAD extends NamedWarpScriptFunction implements WarpScriptStackFunction {
 
@@ -53,103 +65,408 @@ public class GITLOAD extends NamedWarpScriptFunction implements WarpScriptStackF
 
     Map<Object,Object> params = (Map<Object,Object>) top;
 
-    if (!(params.get(GitWarpScriptExtension.PARAM_PATH) instanceof String)) {
+    //
+    // A single path will return its content, a list of paths or a regular expression
+    // will return a map of path to content
+    //
+
+    String path = null;
+    List<String> pathes = null;
+    String regexp = null;
+
+    if (params.get(GitWarpScriptExtension.PARAM_PATH) instanceof String) {
+      path = (String) params.get(GitWarpScriptExtension.PARAM_PATH);
+    } else if (params.get(GitWarpScriptExtension.PARAM_PATH) instanceof List) {
+      pathes = new ArrayList<String>();
+      for (Object elt: (List) params.get(GitWarpScriptExtension.PARAM_PATH)) {
+        if (!(elt instanceof String)) {
+          throw new WarpScriptException(getName() + " key '" + GitWarpScriptExtension.PARAM_PATH + "' should point to a path or a list thereof.");
+        }
+        pathes.add((String) elt);
+      }
+    } else if (params.get(GitWarpScriptExtension.PARAM_REGEXP) instanceof String) {
+      regexp = (String) params.get(GitWarpScriptExtension.PARAM_REGEXP);
+    } else {
       throw new WarpScriptException(getName() + " unset path under key '" + GitWarpScriptExtension.PARAM_PATH + "'.");
     }
 
-    String path = (String) params.get(GitWarpScriptExtension.PARAM_PATH);
+    //
+    // Only return the size of the content or a range of it
+    //
+
+    boolean sizeonly = Boolean.TRUE.equals(params.get(GitWarpScriptExtension.PARAM_SIZE));
+
+    long offset = 0L;
+    long length = -1L;
 
-    if (!(params.get(GitWarpScriptExtension.PARAM_REPO) instanceof String)) {
-      throw new WarpScriptException(getName() + " unset repository under key '" + GitWarpScriptExtension.PARAM_REPO + "'.");
+    if (params.get(GitWarpScriptExtension.PARAM_OFFSET) instanceof Long) {
+      offset = ((Long) params.get(GitWarpScriptExtension.PARAM_OFFSET)).longValue();
+      if (offset < 0) {
+        throw new WarpScriptException(getName() + " expects a positive offset under key '" + GitWarpScriptExtension.PARAM_OFFSET + "'.");
+      }
     }
 
-    String repo = (String) params.get(GitWarpScriptExtension.PARAM_REPO);
+    if (params.get(GitWarpScriptExtension.PARAM_LENGTH) instanceof Long) {
+      length = ((Long) params.get(GitWarpScriptExtension.PARAM_LENGTH)).longValue();
+      if (length < 0) {
+        throw new WarpScriptException(getName() + " expects a positive length under key '" + GitWarpScriptExtension.PARAM_LENGTH + "'.");
+      }
+    }
 
     String rev = Constants.HEAD;
 
+    //
+    // The content of a single path can be loaded from several revisions, either a
+    // list of revisions or the commits which modified the path, selected by count
+    // and/or commit time.
+    //
+
+    List<String> revs = null;
+    Integer count = null;
+    Long since = null;
+
     if (params.get(GitWarpScriptExtension.PARAM_REV) instanceof String) {
       rev = (String) params.get(GitWarpScriptExtension.PARAM_REV);
+    } else if (params.get(GitWarpScriptExtension.PARAM_REV) instanceof List) {
+      revs = new ArrayList<String>();
+      for (Object elt: (List) params.get(GitWarpScriptExtension.PARAM_REV)) {
+        if (!(elt instanceof String)) {
+          throw new WarpScriptException(getName() + " key '" + GitWarpScriptExtension.PARAM_REV + "' should point to a revision or a list thereof.");
+        }
+        revs.add((String) elt);
+      }
     }
 
-    //
-    // Check that the root is configured and that the stack has the correct capability
-    //
+    if (params.get(GitWarpScriptExtension.PARAM_COUNT) instanceof Long) {
+      long c = ((Long) params.get(GitWarpScriptExtension.PARAM_COUNT)).longValue();
+      if (c > Integer.MAX_VALUE) {
+        throw new WarpScriptException(getName() + " expects a count of at most " + Integer.MAX_VALUE + " under key '" + GitWarpScriptExtension.PARAM_COUNT + "'.");
+      }
+      count = (int) Math.max(0L, c);
+    }
+
+    if (params.get(GitWarpScriptExtension.PARAM_SINCE) instanceof Long) {
+      since = (Long) params.get(GitWarpScriptExtension.PARAM_SINCE);
+    }
+
+    boolean history = null != revs || null != count || null != since;
 
-    if (null == GitWarpScriptExtension.getRoot()) {
-      throw new WarpScriptException(getName() + " Git root was not configured.");
+    if (history && null == path) {
+      throw new WarpScriptException(getName() + " can only load a single path from several revisions.");
     }
 
     //
-    // Check that the stack has the right capability
+    // Check that the stack has the right capability, a session was checked when it was opened
     //
 
-    Map<String,String> capabilities = Capabilities.get(stack, (List) null);
-
-    if (!repo.equals(capabilities.get(GitWarpScriptExtension.CAP_GITREPO))) {
-      throw new WarpScriptException(getName() + " missing or invalid '" + GitWarpScriptExtension.CAP_GITREPO + "' capability.");
-    }
+    GitSession session = GitSession.get(stack, getName(), params.get(GitWarpScriptExtension.PARAM_REPO));
+    String repo = session.getRepo();
+    Map<String,String> capabilities = session.getCapabilities();
 
     //
     // Add git.subdir prefix to path if defined
     //
 
-    String rawpath = path;
+    String subdir = capabilities.get(GitWarpScriptExtension.CAP_GITSUBDIR);
+
+    if (null != path) {
+      path = checkPath(subdir, path);
+    } else if (null != pathes) {
+      for (int i = 0; i < pathes.size(); i++) {
+        pathes.set(i, checkPath(subdir, pathes.get(i)));
+      }
+    } else {
+      regexp = GitRegexpTreeFilter.scope(regexp, subdir);
+    }
+
+    GitRepositoryCache.Handle handle = null;
+
+    try {
+      handle = session.acquire();
+      Repository repository = handle.getRepository();
+
+      // find the requested revision
+      ObjectId lastCommitId = session.resolve(repository, rev);
+
+      if (null == lastCommitId && null == revs) {
+        throw new WarpScriptException(getName() + " revision '" + rev + "' was not found in repository '" + repo + "'.");
+      }
+
+      try (ObjectReader reader = repository.newObjectReader(); RevWalk rwalk = new RevWalk(reader)) {
+        if (history) {
+          //
+          // Resolve the blob of 'path' in each revision, the blobs common to several
+          // revisions are only read once
+          //
+
+          Map<String,ObjectId> ids = new LinkedHashMap<String,ObjectId>();
+
+          if (null != revs) {
+            for (String r: revs) {
+              ObjectId commitId = session.resolve(repository, r);
+              ids.put(r, null == commitId ? null : resolve(rwalk, repo, commitId, path));
+            }
+          } else {
+            rwalk.markStart(rwalk.parseCommit(lastCommitId));
+            rwalk.setTreeFilter(AndTreeFilter.create(PathFilter.create(path), TreeFilter.ANY_DIFF));
+            rwalk.setRewriteParents(false);
+            if (null != since) {
+              rwalk.setRevFilter(CommitTimeRevFilter.after(since / io.warp10.continuum.store.Constants.TIME_UNITS_PER_MS));
+            }
+
+            for (RevCommit commit: rwalk) {
+              if (null != count && ids.size() >= count) {
+                break;
+              }
+              ids.put(commit.name(), null);
+            }
+
+            for (String commit: ids.keySet()) {
+              ids.put(commit, resolve(rwalk, repo, ObjectId.fromString(commit), path));
+            }
+          }
+
+          Map<ObjectId,Object> contents = read(reader, ids.values(), sizeonly, offset, length);
+
+          Map<Object,Object> result = new LinkedHashMap<Object,Object>();
+
+          for (Map.Entry<String,ObjectId> entry: ids.entrySet()) {
+            result.put(entry.getKey(), null == entry.getValue() ? null : contents.get(entry.getValue()));
+          }
+
+          stack.push(result);
+        } else if (null != path) {
+          ObjectId id = resolve(rwalk, repo, lastCommitId, path);
+          stack.push(null == id ? null : read(reader, id, sizeonly, offset, length));
+        } else {
+          Map<String,ObjectId> ids = resolve(rwalk, lastCommitId, pathes, regexp, subdir);
+          Map<ObjectId,Object> contents = read(reader, ids.values(), sizeonly, offset, length);
+
+          Map<Object,Object> result = new LinkedHashMap<Object,Object>();
+
+          for (Map.Entry<String,ObjectId> entry: ids.entrySet()) {
+            String p = entry.getKey();
+            if (null != subdir) {
+              if (!p.startsWith(subdir + "/")) {
+                continue;
+              }
+              p = p.substring(subdir.length() + 1);
+            }
+            result.put(p, null == entry.getValue() ? null : contents.get(entry.getValue()));
+          }
+
+          stack.push(result);
+        }
+      }
+    } catch (WarpScriptException wse) {
+      throw wse;
+    } catch (Exception e) {
+      throw GitWarpScriptExtension.error(getName() + " error opening Git repository '" + repo + "'", e);
+    } finally {
+      if (null != handle) {
+        handle.close();
+      }
+    }
+
+    return stack;
+  }
 
-    if (null != capabilities.get(GitWarpScriptExtension.CAP_GITSUBDIR)) {
-      path = capabilities.get(GitWarpScriptExtension.CAP_GITSUBDIR) + "/" + path;
+  private String checkPath(String subdir, String path) throws WarpScriptException {
+    if (null != subdir) {
+      path = subdir + "/" + path;
     }
 
     if (path.contains("/../") || path.contains("/./") || path.startsWith("./") || path.startsWith("../")) {
       throw new WarpScriptException(getName() + " invalid path.");
     }
 
-    File repodir = new File(GitWarpScriptExtension.getRoot(), repo);
-    File target = new File(repodir, path);
+    return path;
+  }
 
-//    if (!target.exists() || !target.isFile() || ".git".equals(path)) {
-//      throw new WarpScriptException("Invalid path '" + rawpath + "'.");
-//    }
+  /**
+   * Resolve the blob id of a single path, null if the path does not exist or is not a file
+   */
+  private static ObjectId resolve(RevWalk rwalk, String repo, ObjectId commitId, String path) throws IOException {
+    //
+    // Resolve the blob id of 'path' in the commit, the resolution only depends on
+    // the repository, the commit and the path so it can be cached.
+    //
 
-    Git git = null;
+    String key = repo + '\0' + commitId.name() + '\0' + path;
 
-    try {
-      git = Git.open(new File(GitWarpScriptExtension.getRoot(), repo));
+    ObjectId objectId = GitWarpScriptExtension.getPathCache().get(key);
 
-      // find the requested revision
-      ObjectId lastCommitId = git.getRepository().resolve(rev);
+    if (null == objectId) {
+      RevCommit commit = rwalk.parseCommit(commitId);
+      RevTree tree = commit.getTree();
+      try (TreeWalk twalk = TreeWalk.forPath(rwalk.getObjectReader(), path, tree)) {
+        if (null != twalk && Constants.OBJ_BLOB == twalk.getFileMode(0).getObjectType()) {
+          objectId = twalk.getObjectId(0);
+        } else {
+          objectId = ObjectId.zeroId();
+        }
+      }
+      GitWarpScriptExtension.getPathCache().put(key, objectId);
+    }
 
-      if (null == lastCommitId) {
-        throw new WarpScriptException(getName() + " revision '" + rev + "' was not found in repository '" + repo + "'.");
+    return ObjectId.zeroId().equals(objectId) ? null : objectId;
+  }
+
+  /**
+   * Resolve the blob ids of several paths in a single walk of the tree.
+   *
+   * @param pathes Paths to resolve, those which do not exist will be associated with null
+   * @param regexp Regular expression the paths to resolve must match, used if 'pathes' is null
+   * @param subdir Directory the paths matching 'regexp' must be in, or null
+   * @return A map of path to blob id
+   */
+  private static Map<String,ObjectId> resolve(RevWalk rwalk, ObjectId commitId, List<String> pathes, String regexp, String subdir) throws IOException {
+    Map<String,ObjectId> ids = new LinkedHashMap<String,ObjectId>();
+
+    if (null != pathes) {
+      for (String p: pathes) {
+        ids.put(p, null);
       }
+    }
 
-      RevWalk rwalk = new RevWalk(git.getRepository());
-      RevCommit commit = rwalk.parseCommit(lastCommitId);
-      RevTree tree = commit.getTree();
-      TreeWalk twalk = new TreeWalk(git.getRepository());
-      twalk.addTree(tree);
-      twalk.setRecursive(true);
-      twalk.setFilter(PathFilter.create(path));
+    if (null == pathes || !pathes.isEmpty()) {
+      try (TreeWalk twalk = new TreeWalk(rwalk.getObjectReader())) {
+        twalk.addTree(rwalk.parseCommit(commitId).getTree());
+        twalk.setRecursive(true);
+        twalk.setFilter(null == pathes ? GitRegexpTreeFilter.create(regexp, subdir) : PathFilterGroup.createFromStrings(pathes));
+
+        long entries = 0L;
+
+        while (twalk.next()) {
+          entries++;
+          // A path filter also selects the files under the requested paths, ignore those
+          if (null != pathes && !ids.containsKey(twalk.getPathString())) {
+            continue;
+          }
+          if (Constants.OBJ_BLOB == twalk.getFileMode(0).getObjectType()) {
+            ids.put(twalk.getPathString(), twalk.getObjectId(0));
+          }
+        }
+
+        GitMetrics.entries(entries);
+      }
+    }
 
-      if (twalk.next()) {
-        ObjectId objectId = twalk.getObjectId(0);
-        ObjectLoader loader = git.getRepository().open(objectId);
+    return ids;
+  }
+
+  /**
+   * Read a blob, or only its size or a range of its content
+   *
+   * @param length Number of bytes to read from 'offset', negative to read up to the end of the blob
+   * @return The size of the blob as a LONG if 'sizeonly' is true, its content as BYTES otherwise
+   */
+  private Object read(ObjectReader reader, ObjectId id, boolean sizeonly, long offset, long length) throws IOException, WarpScriptException {
+    byte[] content = GitWarpScriptExtension.getBlobCache().get(id);
+
+    if (sizeonly) {
+      // The size is read from the object header, the content is not inflated
+      return null != content ? (long) content.length : reader.getObjectSize(id, Constants.OBJ_BLOB);
+    }
+
+    long max = GitWarpScriptExtension.getLoadMaxSize();
+
+    if (null != content) {
+      return GitMetrics.read(slice(content, offset, length, max));
+    }
+
+    ObjectLoader loader = reader.open(id, Constants.OBJ_BLOB);
+
+    if (0 == offset && length < 0) {
+      checkSize(loader.getSize(), max);
+      content = loader.getBytes();
+      GitWarpScriptExtension.getBlobCache().put(id, content);
+      return GitMetrics.read(content.clone());
+    }
+
+    //
+    // Only read the requested range through the stream of the object
+    //
 
-        stack.push(loader.getBytes());
+    long len = Math.max(0L, loader.getSize() - offset);
+
+    if (length >= 0) {
+      len = Math.min(len, length);
+    }
+
+    checkSize(len, max);
+
+    if (len > Integer.MAX_VALUE) {
+      throw new WarpScriptException(getName() + " cannot return more than " + Integer.MAX_VALUE + " bytes, reduce the value under key '" + GitWarpScriptExtension.PARAM_LENGTH + "'.");
+    }
+
+    byte[] range = new byte[(int) len];
+
+    try (ObjectStream in = loader.openStream()) {
+      if (len > 0) {
+        IO.skipFully(in, offset);
+        IO.readFully(in, range, 0, range.length);
+      }
+    }
+
+    return GitMetrics.read(range);
+  }
+
+  /**
+   * Read several blobs, those not cached are read in a single batch, letting the reader
+   * order the reads according to their location in the packs.
+   *
+   * @return A map of blob id to LONG size or BYTES content
+   */
+  private Map<ObjectId,Object> read(ObjectReader reader, Collection<ObjectId> ids, boolean sizeonly, long offset, long length) throws IOException, WarpScriptException {
+    Map<ObjectId,Object> contents = new HashMap<ObjectId,Object>();
+    List<ObjectId> missing = new ArrayList<ObjectId>();
+
+    for (ObjectId id: ids) {
+      if (null == id || contents.containsKey(id)) {
+        continue;
+      }
+      if (sizeonly || 0 != offset || length >= 0) {
+        contents.put(id, read(reader, id, sizeonly, offset, length));
+        continue;
+      }
+      byte[] content = GitWarpScriptExtension.getBlobCache().get(id);
+      if (null == content) {
+        missing.add(id);
       } else {
-        stack.push(null);
+        contents.put(id, GitMetrics.read(content.clone()));
       }
+    }
 
-      twalk.close();
-      rwalk.dispose();
-    } catch (Exception e) {
-      // Do not include original exception so we do not leak internal path
-      throw new WarpScriptException(getName() + " error opening Git repository '" + repo + "'.");
-    } finally {
-      if (null != git) {
-        git.close();
+    if (!missing.isEmpty()) {
+      long max = GitWarpScriptExtension.getLoadMaxSize();
+      AsyncObjectLoaderQueue<ObjectId> queue = reader.open(missing, true);
+      try {
+        while (queue.next()) {
+          ObjectLoader loader = queue.open();
+          checkSize(loader.getSize(), max);
+          byte[] content = loader.getBytes();
+          GitWarpScriptExtension.getBlobCache().put(queue.getObjectId().copy(), content);
+          contents.put(queue.getObjectId().copy(), GitMetrics.read(content.clone()));
+        }
+      } finally {
+        queue.release();
       }
     }
 
-    return stack;
+    return contents;
+  }
+
+  private byte[] slice(byte[] content, long offset, long length, long max) throws WarpScriptException {
+    int from = (int) Math.min(offset, content.length);
+    int to = length < 0 ? content.length : from + (int) Math.min(content.length - from, length);
+    checkSize(to - from, max);
+    return Arrays.copyOfRange(content, from, to);
+  }
+
+  private void checkSize(long size, long max) throws WarpScriptException {
+    if (max > 0 && size > max) {
+      throw new WarpScriptException(getName() + " content size of " + size + " bytes exceeds the maximum of " + max + " bytes.");
+    }
   }
 }
@@ -16,32 +16,42 @@
 
 package io.warp10.ext.git;
 
-import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
 
 import org.eclipse.jgit.api.Git;
-import org.eclipse.jgit.api.LogCommand;
+import org.eclipse.jgit.errors.IncorrectObjectTypeException;
+import org.eclipse.jgit.errors.MissingObjectException;
+import org.eclipse.jgit.errors.StopWalkException;
+import org.eclipse.jgit.lib.ObjectId;
 import org.eclipse.jgit.lib.PersonIdent;
 import org.eclipse.jgit.lib.Ref;
 import org.eclipse.jgit.revwalk.RevCommit;
-import org.eclipse.jgit.revwalk.RevObject;
 import org.eclipse.jgit.revwalk.RevTag;
 import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.revwalk.TreeRevFilter;
+import org.eclipse.jgit.revwalk.filter.AndRevFilter;
+import org.eclipse.jgit.revwalk.filter.CommitTimeRevFilter;
+import org.eclipse.jgit.revwalk.filter.RevFilter;
+import org.eclipse.jgit.treewalk.filter.AndTreeFilter;
+import org.eclipse.jgit.treewalk.filter.TreeFilter;
 
 import io.warp10.continuum.store.Constants;
 import io.warp10.script.NamedWarpScriptFunction;
 import io.warp10.script.WarpScriptException;
 import io.warp10.script.WarpScriptStack;
 import io.warp10.script.WarpScriptStackFunction;
-import io.warp10.warp.sdk.Capabilities;
 
 public class GITLOG extends NamedWarpScriptFunction implements WarpScriptStackFunction {
 
-  private static final GITFIND GITFIND = new GITFIND(GitWarpScriptExtension.GITFIND);
-
   public GITLOG(String name) {
     super(name);
   }
@@ -97,155 +107,355 @@ public class GITLOG extends NamedWarpScriptFunction implements WarpScriptStackFu
       }
     }
 
-    if (!(params.get(GitWarpScriptExtension.PARAM_REPO) instanceof String)) {
-      throw new WarpScriptException(getName() + " unset repository under key '" + GitWarpScriptExtension.PARAM_REPO + "'.");
+    //
+    // Time bounds are expressed in platform time units, like the timestamps returned
+    //
+
+    Long since = null;
+    Long until = null;
+
+    if (params.get(GitWarpScriptExtension.PARAM_SINCE) instanceof Long) {
+      since = ((Long) params.get(GitWarpScriptExtension.PARAM_SINCE)) / Constants.TIME_UNITS_PER_MS;
     }
 
-    String repo = (String) params.get(GitWarpScriptExtension.PARAM_REPO);
+    if (params.get(GitWarpScriptExtension.PARAM_UNTIL) instanceof Long) {
+      until = ((Long) params.get(GitWarpScriptExtension.PARAM_UNTIL)) / Constants.TIME_UNITS_PER_MS;
+    }
 
     //
-    // Check that the root is configured and that the stack has the correct capability
+    // If the 'cursor' key is present, a cursor is returned alongside the log entries. The walk
+    // resumes where the previous page stopped when a cursor is provided.
     //
 
-    if (null == GitWarpScriptExtension.getRoot()) {
-      throw new WarpScriptException(getName() + " Git root was not configured.");
+    boolean paginate = params.containsKey(GitWarpScriptExtension.PARAM_CURSOR);
+    List<ObjectId> cursor = null;
+
+    if (null != params.get(GitWarpScriptExtension.PARAM_CURSOR)) {
+      if (!(params.get(GitWarpScriptExtension.PARAM_CURSOR) instanceof String)) {
+        throw new WarpScriptException(getName() + " invalid cursor under key '" + GitWarpScriptExtension.PARAM_CURSOR + "'.");
+      }
+      cursor = new ArrayList<ObjectId>();
+      for (String id: ((String) params.get(GitWarpScriptExtension.PARAM_CURSOR)).split("\\.")) {
+        if (!ObjectId.isId(id)) {
+          throw new WarpScriptException(getName() + " invalid cursor under key '" + GitWarpScriptExtension.PARAM_CURSOR + "'.");
+        }
+        cursor.add(ObjectId.fromString(id));
+      }
     }
 
     //
-    // Check that the stack has the right capability
+    // Check that the stack has the right capability, a session was checked when it was opened
     //
-    Map<String,String> capabilities = Capabilities.get(stack, (List) null);
 
-    if (!repo.equals(capabilities.get(GitWarpScriptExtension.CAP_GITREPO))) {
-      throw new WarpScriptException(getName() + " missing or invalid '" + GitWarpScriptExtension.CAP_GITREPO + "' capability.");
-    }
+    GitSession session = GitSession.get(stack, getName(), params.get(GitWarpScriptExtension.PARAM_REPO));
+    String repo = session.getRepo();
+    Map<String,String> capabilities = session.getCapabilities();
 
     String subdir = capabilities.get(GitWarpScriptExtension.CAP_GITSUBDIR);
 
     //
-    // If 'pathes' is empty, issue a GITFIND first on the same repo
+    // Paths are relative to the subdir, if 'pathes' is empty the whole subdir is considered
     //
 
-    if (pathes.isEmpty()) {
-      stack.push(params);
-      GITFIND.apply(stack);
-      List<Object> l = (List<Object>) stack.pop();
-      for (Object o: l) {
-        pathes.add(String.valueOf(o));
+    if (null != subdir) {
+      if (pathes.isEmpty()) {
+        pathes.add(subdir);
+      } else {
+        for (int i = 0; i < pathes.size(); i++) {
+          pathes.set(i, subdir + "/" + pathes.get(i));
+        }
       }
     }
 
-    Git git = null;
+    GitRepositoryCache.Handle handle = null;
 
     try {
-      git = Git.open(new File(GitWarpScriptExtension.getRoot(), repo));
+      handle = session.acquire();
+      Git git = handle.getGit();
 
       Map<String,Map<Object,Object>> revs = new LinkedHashMap<String,Map<Object,Object>>();
 
-      LogCommand log = git.log();
+      //
+      // When filtering on paths, the commits are looked up in the path index rather than
+      // by diffing the trees of the whole history. Pagination needs the actual walk, so does a
+      // session pinned to a commit other than HEAD as the index follows HEAD, and a walk which
+      // would reach a merge as the index does not simplify the history at merges.
+      //
 
-      if (null != count) {
-        log = log.setMaxCount(count);
-      }
-      if (null != skip) {
-        log = log.setSkip(skip);
+      List<ObjectId> indexed = null;
+      String next = null;
+
+      boolean current = !session.isPinned() || Objects.equals(session.resolve(git.getRepository(), org.eclipse.jgit.lib.Constants.HEAD), git.getRepository().resolve(org.eclipse.jgit.lib.Constants.HEAD));
+
+      if (!paginate && !pathes.isEmpty() && current && GitWarpScriptExtension.usePathIndex()) {
+        indexed = GitPathIndex.get(repo).log(git.getRepository(), pathes, since, until);
       }
 
-      for (String path: pathes) {
-        if (null == subdir) {
-          log.addPath(path);
-        } else {
-          log.addPath(subdir + "/" + path);
+      if (null != indexed) {
+        try (RevWalk rwalk = new RevWalk(git.getRepository())) {
+          int from = null == skip ? 0 : skip;
+          int to = null == count ? indexed.size() : (int) Math.min(indexed.size(), (long) from + count);
+
+          for (int i = from; i < to; i++) {
+            RevCommit commit = rwalk.parseCommit(indexed.get(i));
+            revs.put(commit.getName(), infos(commit));
+          }
+
+          GitMetrics.commits(Math.max(0, to - from));
+        }
+      } else {
+        List<ObjectId> starts = cursor;
+
+        if (null == starts) {
+          ObjectId head = session.resolve(git.getRepository(), org.eclipse.jgit.lib.Constants.HEAD);
+
+          if (null == head) {
+            throw new WarpScriptException(getName() + " repository has no HEAD.");
+          }
+
+          starts = Collections.singletonList(head);
+        }
+
+        try (RevWalk rwalk = new RevWalk(git.getRepository())) {
+          for (ObjectId start: starts) {
+            rwalk.markStart(rwalk.parseCommit(start));
+          }
+
+          //
+          // The path filter is applied as a RevFilter so the tracking filter sees all the commits
+          // popped by the walk, including those which do not modify the paths.
+          //
+
+          RevFilter filter = RevFilter.ALL;
+
+          if (!pathes.isEmpty()) {
+            filter = new TreeRevFilter(rwalk, AndTreeFilter.create(new GitPathTreeFilter(pathes), TreeFilter.ANY_DIFF));
+          }
+
+          //
+          // Commit time filters are evaluated first, the walk stops at the first commit older than 'since'
+          // so the rest of the history is never read.
+          //
+
+          if (null != until) {
+            filter = AndRevFilter.create(CommitTimeRevFilter.before(until), filter);
+          }
+
+          if (null != since) {
+            filter = AndRevFilter.create(CommitTimeRevFilter.after(since), filter);
+          }
+
+          // Popped commits are counted, and only recorded when paginating
+          TrackingRevFilter tracking = new TrackingRevFilter(filter, paginate);
+
+          rwalk.setRevFilter(tracking);
+
+          // Rewriting parents would buffer the whole history before returning the first commit
+          rwalk.setRewriteParents(false);
+
+          int skipped = 0;
+
+          //
+          // Commits are pulled one at a time, the RevWalk iterator would pop one commit ahead
+          //
+
+          while (null == count || revs.size() < count) {
+            RevCommit commit = rwalk.next();
+
+            if (null == commit) {
+              break;
+            }
+
+            if (null != skip && skipped < skip) {
+              skipped++;
+              continue;
+            }
+
+            revs.put(commit.getName(), infos(commit));
+          }
+
+          if (paginate) {
+            next = tracking.cursor(starts);
+          }
+
+          GitMetrics.commits(tracking.walked);
         }
       }
 
-      Iterable<RevCommit> commits = log.call();
-
-      for (RevCommit commit: commits) {
-        Map<Object,Object> infos = new LinkedHashMap<Object,Object>();
-
-        infos.put(GitWarpScriptExtension.INFOS_REV, commit.getName());
-        infos.put(GitWarpScriptExtension.INFOS_MESSAGE, commit.getFullMessage());
-        infos.put(GitWarpScriptExtension.INFOS_TYPE, org.eclipse.jgit.lib.Constants.typeString(commit.getType()));
-
-        PersonIdent person = commit.getAuthorIdent();
-        infos.put(GitWarpScriptExtension.INFOS_AUTHOR_NAME, person.getName());
-        infos.put(GitWarpScriptExtension.INFOS_AUTHOR_EMAIL, person.getEmailAddress());
-        infos.put(GitWarpScriptExtension.INFOS_AUTHOR_TIMESTAMP, person.getWhen().getTime() * Constants.TIME_UNITS_PER_MS);
-
-        person = commit.getCommitterIdent();
-        infos.put(GitWarpScriptExtension.INFOS_COMMITTER_NAME, person.getName());
-        infos.put(GitWarpScriptExtension.INFOS_COMMITTER_EMAIL, person.getEmailAddress());
-        infos.put(GitWarpScriptExtension.INFOS_COMMITTER_TIMESTAMP, person.getWhen().getTime() * Constants.TIME_UNITS_PER_MS);
-
-        revs.put(commit.getName(), infos);
-      }
-
-      // Retrieve tags
-      List<Ref> tagrefs = git.tagList().call();
-      RevWalk walk = new RevWalk(git.getRepository());
-      for (Ref ref: tagrefs) {
-        RevObject rev = walk.parseAny(ref.getObjectId());
-        if (rev instanceof RevTag) {
-          RevTag rt = (RevTag) rev;
-          Map<Object,Object> infos = new LinkedHashMap<Object,Object>();
-
-          infos.put(GitWarpScriptExtension.INFOS_REV, rt.getName());
-          infos.put(GitWarpScriptExtension.INFOS_MESSAGE, rt.getFullMessage());
-          infos.put(GitWarpScriptExtension.INFOS_TYPE, org.eclipse.jgit.lib.Constants.typeString(rt.getType()));
-          infos.put(GitWarpScriptExtension.INFOS_TAG, rt.getTagName());
-          infos.put(GitWarpScriptExtension.INFOS_TAGGED, rt.getObject().getName());
-
-          PersonIdent person = rt.getTaggerIdent();
-          infos.put(GitWarpScriptExtension.INFOS_AUTHOR_NAME, person.getName());
-          infos.put(GitWarpScriptExtension.INFOS_AUTHOR_EMAIL, person.getEmailAddress());
-          infos.put(GitWarpScriptExtension.INFOS_AUTHOR_TIMESTAMP, person.getWhen().getTime() * Constants.TIME_UNITS_PER_MS);
-
-          // Only store tags for revisions already in 'revs'
-          if (revs.containsKey(rt.getObject().getName())) {
-            revs.put(rt.getName(), infos);
-            infos = revs.get(rt.getObject().getName());
-            List<String> tags = (List<String>) infos.get(GitWarpScriptExtension.INFOS_TAGS);
-            if (null == tags) {
-              tags = new ArrayList<String>();
-              infos.put(GitWarpScriptExtension.INFOS_TAGS, tags);
+      //
+      // Retrieve the tags pointing to the returned commits, the other tags are not parsed
+      //
+
+      Map<ObjectId,List<Ref>> index = GitTagIndex.get(repo).tags(git.getRepository());
+
+      if (!index.isEmpty()) {
+        try (RevWalk walk = new RevWalk(git.getRepository())) {
+          for (String rev: new ArrayList<String>(revs.keySet())) {
+            ObjectId id = ObjectId.fromString(rev);
+            List<Ref> tagrefs = index.get(id);
+
+            if (null == tagrefs) {
+              continue;
+            }
+
+            for (Ref ref: tagrefs) {
+              String name = ref.getName().substring(org.eclipse.jgit.lib.Constants.R_TAGS.length());
+
+              // Lightweight tags have no tag object, they are only listed in the tags of the commit
+              if (!ref.getObjectId().equals(id)) {
+                RevTag rt = walk.parseTag(ref.getObjectId());
+                Map<Object,Object> infos = new LinkedHashMap<Object,Object>();
+
+                infos.put(GitWarpScriptExtension.INFOS_REV, rt.getName());
+                infos.put(GitWarpScriptExtension.INFOS_MESSAGE, rt.getFullMessage());
+                infos.put(GitWarpScriptExtension.INFOS_TYPE, org.eclipse.jgit.lib.Constants.typeString(rt.getType()));
+                infos.put(GitWarpScriptExtension.INFOS_TAG, rt.getTagName());
+                infos.put(GitWarpScriptExtension.INFOS_TAGGED, rt.getObject().getName());
+
+                PersonIdent person = rt.getTaggerIdent();
+                infos.put(GitWarpScriptExtension.INFOS_AUTHOR_NAME, person.getName());
+                infos.put(GitWarpScriptExtension.INFOS_AUTHOR_EMAIL, person.getEmailAddress());
+                infos.put(GitWarpScriptExtension.INFOS_AUTHOR_TIMESTAMP, person.getWhen().getTime() * Constants.TIME_UNITS_PER_MS);
+
+                revs.put(rt.getName(), infos);
+                name = rt.getTagName();
+              }
+
+              Map<Object,Object> infos = revs.get(rev);
+              List<String> tags = (List<String>) infos.get(GitWarpScriptExtension.INFOS_TAGS);
+              if (null == tags) {
+                tags = new ArrayList<String>();
+                infos.put(GitWarpScriptExtension.INFOS_TAGS, tags);
+              }
+              tags.add(name);
             }
-            tags.add(rt.getTagName());
           }
-        } else if (rev instanceof RevCommit) {
-          RevCommit commit = (RevCommit) rev;
-          Map<Object,Object> infos = new LinkedHashMap<Object,Object>();
-
-          infos.put(GitWarpScriptExtension.INFOS_REV, commit.getName());
-          infos.put(GitWarpScriptExtension.INFOS_MESSAGE, commit.getFullMessage());
-          infos.put(GitWarpScriptExtension.INFOS_TYPE, org.eclipse.jgit.lib.Constants.typeString(commit.getType()));
-
-          PersonIdent person = commit.getAuthorIdent();
-          infos.put(GitWarpScriptExtension.INFOS_AUTHOR_NAME, person.getName());
-          infos.put(GitWarpScriptExtension.INFOS_AUTHOR_EMAIL, person.getEmailAddress());
-          infos.put(GitWarpScriptExtension.INFOS_AUTHOR_TIMESTAMP, person.getWhen().getTime() * Constants.TIME_UNITS_PER_MS);
-
-          person = commit.getCommitterIdent();
-          infos.put(GitWarpScriptExtension.INFOS_COMMITTER_NAME, person.getName());
-          infos.put(GitWarpScriptExtension.INFOS_COMMITTER_EMAIL, person.getEmailAddress());
-          infos.put(GitWarpScriptExtension.INFOS_COMMITTER_TIMESTAMP, person.getWhen().getTime() * Constants.TIME_UNITS_PER_MS);
-
-          revs.putIfAbsent(commit.getName(), infos);
-        } else {
-          throw new WarpScriptException(getName() + " encountered an invalid tag reference.");
         }
       }
 
-      stack.push(new ArrayList<Object>(revs.values()));
+      if (paginate) {
+        Map<Object,Object> result = new LinkedHashMap<Object,Object>();
+        result.put(GitWarpScriptExtension.INFOS_ENTRIES, new ArrayList<Object>(revs.values()));
+        result.put(GitWarpScriptExtension.INFOS_CURSOR, next);
+        stack.push(result);
+      } else {
+        stack.push(new ArrayList<Object>(revs.values()));
+      }
+    } catch (WarpScriptException wse) {
+      throw wse;
     } catch (Exception e) {
-      // Do not include original exception so we do not leak internal path
-      throw new WarpScriptException(getName() + " error opening Git repository '" + repo + "'.");
+      throw GitWarpScriptExtension.error(getName() + " error opening Git repository '" + repo + "'", e);
     } finally {
-      if (null != git) {
-        git.close();
+      if (null != handle) {
+        handle.close();
       }
     }
 
     return stack;
   }
+
+  /**
+   * RevFilter counting the commits popped by the walk and, if 'track' is set, recording them so
+   * the walk can later be resumed from the parents of those commits which were not popped yet.
+   */
+  private static class TrackingRevFilter extends RevFilter {
+    private final RevFilter filter;
+    private final boolean track;
+    private final Set<ObjectId> popped = new HashSet<ObjectId>();
+    private final List<RevCommit> commits = new ArrayList<RevCommit>();
+    private boolean stopped = false;
+    private long walked = 0L;
+
+    private TrackingRevFilter(RevFilter filter, boolean track) {
+      this.filter = filter;
+      this.track = track;
+    }
+
+    @Override
+    public boolean include(RevWalk walker, RevCommit cmit) throws StopWalkException, MissingObjectException, IncorrectObjectTypeException, IOException {
+      this.walked++;
+      if (this.track && this.popped.add(cmit.copy())) {
+        this.commits.add(cmit);
+      }
+      try {
+        return this.filter.include(walker, cmit);
+      } catch (StopWalkException swe) {
+        // The walk was ended by the filter, there is nothing left to resume
+        this.stopped = true;
+        throw swe;
+      }
+    }
+
+    @Override
+    public boolean requiresCommitBody() {
+      return this.filter.requiresCommitBody();
+    }
+
+    @Override
+    public RevFilter clone() {
+      return new TrackingRevFilter(this.filter.clone(), this.track);
+    }
+
+    /**
+     * @param starts Commits the walk was started from
+     * @return The cursor to resume the walk from or null if the walk is over
+     */
+    private String cursor(List<ObjectId> starts) {
+      if (this.stopped) {
+        return null;
+      }
+
+      Set<ObjectId> frontier = new LinkedHashSet<ObjectId>();
+
+      // Starts may not have been popped, e.g. both parents of a merge ending the previous page
+      for (ObjectId start: starts) {
+        if (!this.popped.contains(start)) {
+          frontier.add(start.copy());
+        }
+      }
+
+      for (RevCommit commit: this.commits) {
+        for (RevCommit parent: commit.getParents()) {
+          if (!this.popped.contains(parent)) {
+            frontier.add(parent.copy());
+          }
+        }
+      }
+
+      if (frontier.isEmpty()) {
+        return null;
+      }
+
+      StringBuilder sb = new StringBuilder();
+
+      for (ObjectId id: frontier) {
+        if (sb.length() > 0) {
+          sb.append('.');
+        }
+        sb.append(id.name());
+      }
+
+      return sb.toString();
+    }
+  }
+
+  private static Map<Object,Object> infos(RevCommit commit) {
+    Map<Object,Object> infos = new LinkedHashMap<Object,Object>();
+
+    infos.put(GitWarpScriptExtension.INFOS_REV, commit.getName());
+    infos.put(GitWarpScriptExtension.INFOS_MESSAGE, commit.getFullMessage());
+    infos.put(GitWarpScriptExtension.INFOS_TYPE, org.eclipse.jgit.lib.Constants.typeString(commit.getType()));
+
+    PersonIdent person = commit.getAuthorIdent();
+    infos.put(GitWarpScriptExtension.INFOS_AUTHOR_NAME, person.getName());
+    infos.put(GitWarpScriptExtension.INFOS_AUTHOR_EMAIL, person.getEmailAddress());
+    infos.put(GitWarpScriptExtension.INFOS_AUTHOR_TIMESTAMP, person.getWhen().getTime() * Constants.TIME_UNITS_PER_MS);
+
+    person = commit.getCommitterIdent();
+    infos.put(GitWarpScriptExtension.INFOS_COMMITTER_NAME, person.getName());
+    infos.put(GitWarpScriptExtension.INFOS_COMMITTER_EMAIL, person.getEmailAddress());
+    infos.put(GitWarpScriptExtension.INFOS_COMMITTER_TIMESTAMP, person.getWhen().getTime() * Constants.TIME_UNITS_PER_MS);
+
+    return infos;
+  }
 }
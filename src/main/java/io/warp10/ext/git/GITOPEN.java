@@ -0,0 +1,76 @@
+//
+//   Copyright 2021  SenX S.A.S.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+package io.warp10.ext.git;
+
+import java.util.Map;
+
+import org.eclipse.jgit.lib.Constants;
+
+import io.warp10.script.NamedWarpScriptFunction;
+import io.warp10.script.WarpScriptException;
+import io.warp10.script.WarpScriptStack;
+import io.warp10.script.WarpScriptStackFunction;
+
+/**
+ * Opens a session on a repository which other functions accept in place of the repository name.
+ */
+public class GITOPEN extends NamedWarpScriptFunction implements WarpScriptStackFunction {
+
+  public GITOPEN(String name) {
+    super(name);
+  }
+
+  @Override
+  public Object apply(WarpScriptStack stack) throws WarpScriptException {
+
+    Object top = stack.pop();
+
+    if (!(top instanceof Map)) {
+      throw new WarpScriptException(getName() + " expects a parameter MAP.");
+    }
+
+    Map<Object,Object> params = (Map<Object,Object>) top;
+
+    if (params.get(GitWarpScriptExtension.PARAM_REPO) instanceof GitSession) {
+      throw new WarpScriptException(getName() + " expects a repository name under key '" + GitWarpScriptExtension.PARAM_REPO + "'.");
+    }
+
+    String rev = Constants.HEAD;
+
+    if (params.get(GitWarpScriptExtension.PARAM_REV) instanceof String) {
+      rev = (String) params.get(GitWarpScriptExtension.PARAM_REV);
+    }
+
+    GitSession session = GitSession.get(stack, getName(), params.get(GitWarpScriptExtension.PARAM_REPO));
+    String repo = session.getRepo();
+
+    try {
+      GitSession opened = GitSession.open(stack, session, rev);
+
+      if (null == opened) {
+        throw new WarpScriptException(getName() + " revision '" + rev + "' was not found in repository '" + repo + "'.");
+      }
+
+      stack.push(opened);
+    } catch (WarpScriptException wse) {
+      throw wse;
+    } catch (Exception e) {
+      throw GitWarpScriptExtension.error(getName() + " error opening Git repository '" + repo + "'", e);
+    }
+
+    return stack;
+  }
+}
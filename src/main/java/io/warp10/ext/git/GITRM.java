@@ -16,21 +16,18 @@
 
 package io.warp10.ext.git;
 
-import java.io.File;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
-import org.eclipse.jgit.api.CommitCommand;
-import org.eclipse.jgit.api.Git;
-import org.eclipse.jgit.api.RmCommand;
-import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.PersonIdent;
 
 import io.warp10.script.NamedWarpScriptFunction;
 import io.warp10.script.WarpScriptException;
 import io.warp10.script.WarpScriptStack;
 import io.warp10.script.WarpScriptStackFunction;
-import io.warp10.warp.sdk.Capabilities;
 
 public class GITRM extends NamedWarpScriptFunction implements WarpScriptStackFunction {
 
@@ -64,11 +61,12 @@ public class GITRM extends NamedWarpScriptFunction implements WarpScriptStackFun
       throw new WarpScriptException(getName() + " key '" + GitWarpScriptExtension.PARAM_PATH + "' should point to a path or a list thereof.");
     }
 
-    if (!(params.get(GitWarpScriptExtension.PARAM_REPO) instanceof String)) {
-      throw new WarpScriptException(getName() + " unset repository under key '" + GitWarpScriptExtension.PARAM_REPO + "'.");
+    if (null != params.get(GitWarpScriptExtension.PARAM_PARENT) && !(params.get(GitWarpScriptExtension.PARAM_PARENT) instanceof String)) {
+      throw new WarpScriptException(getName() + " expects the expected parent revision under key '" + GitWarpScriptExtension.PARAM_PARENT + "' to be a STRING.");
     }
 
-    String repo = (String) params.get(GitWarpScriptExtension.PARAM_REPO);
+    String parent = (String) params.get(GitWarpScriptExtension.PARAM_PARENT);
+    boolean rebase = Boolean.TRUE.equals(params.get(GitWarpScriptExtension.PARAM_REBASE));
 
     if (!(params.get(GitWarpScriptExtension.PARAM_MESSAGE) instanceof String)) {
       throw new WarpScriptException(getName() + " expects a commit message under key '" + GitWarpScriptExtension.PARAM_MESSAGE + "'.");
@@ -77,21 +75,12 @@ public class GITRM extends NamedWarpScriptFunction implements WarpScriptStackFun
     String message = (String) params.get(GitWarpScriptExtension.PARAM_MESSAGE);
 
     //
-    // Check that the root is configured and that the stack has the correct capability
+    // Check that the stack has the right capability, a session was checked when it was opened
     //
 
-    if (null == GitWarpScriptExtension.getRoot()) {
-      throw new WarpScriptException(getName() + " Git root was not configured.");
-    }
-
-    //
-    // Check that the stack has the right capability
-    //
-    Map<String,String> capabilities = Capabilities.get(stack, (List) null);
-
-    if (!repo.equals(capabilities.get(GitWarpScriptExtension.CAP_GITREPO))) {
-      throw new WarpScriptException(getName() + " missing or invalid '" + GitWarpScriptExtension.CAP_GITREPO + "' capability.");
-    }
+    GitSession session = GitSession.get(stack, getName(), params.get(GitWarpScriptExtension.PARAM_REPO));
+    String repo = session.getRepo();
+    Map<String,String> capabilities = session.getCapabilities();
 
     if (null != capabilities.get(GitWarpScriptExtension.CAP_GITRO)) {
       throw new WarpScriptException(getName() + " no right to modify repository '" + repo + "'.");
@@ -99,36 +88,39 @@ public class GITRM extends NamedWarpScriptFunction implements WarpScriptStackFun
 
     String subdir = capabilities.get(GitWarpScriptExtension.CAP_GITSUBDIR);
 
-    Git git = null;
+    GitRepositoryCache.Handle handle = null;
 
     try {
-      git = Git.open(new File(GitWarpScriptExtension.getRoot(), repo));
+      handle = session.acquire();
 
-      RmCommand rm = git.rm();
+      Map<String,byte[]> changes = new LinkedHashMap<String,byte[]>();
       for (String path: pathes) {
         if (null == subdir) {
-          rm.addFilepattern(path);
+          changes.put(path, null);
         } else {
-          rm.addFilepattern(subdir + "/" + path);
+          changes.put(subdir + "/" + path, null);
         }
       }
 
-      rm.call();
-
-      CommitCommand commit = git.commit();
       // Extract author and email from capabilities gituser and gitemail if set
-      commit.setAuthor(capabilities.getOrDefault(GitWarpScriptExtension.CAP_GITNAME, "warp10-ext-git"), capabilities.getOrDefault(GitWarpScriptExtension.CAP_GITEMAIL, "contact@senx.io"));
-      commit.setAllowEmpty(false);
-      commit.setCommitter("warp10-ext-git", "contact@senx.io");
-      commit.setMessage(message);
-      RevCommit rev = commit.call();
-      stack.push(rev.getId().name());
+      PersonIdent author = new PersonIdent(capabilities.getOrDefault(GitWarpScriptExtension.CAP_GITNAME, "warp10-ext-git"), capabilities.getOrDefault(GitWarpScriptExtension.CAP_GITEMAIL, "contact@senx.io"));
+      PersonIdent committer = new PersonIdent("warp10-ext-git", "contact@senx.io");
+
+      ObjectId expected = session.expected(handle.getRepository(), parent);
+
+      ObjectId rev = GitWriteQueue.get(repo).commit(handle.getRepository(), changes, author, committer, message, expected, rebase);
+
+      // Reads through a session see its own writes
+      session.advance(rev);
+
+      stack.push(null == rev ? null : rev.name());
+    } catch (GitConflictException gce) {
+      stack.push(gce.toInfos());
     } catch (Exception e) {
-      // Do not include original exception so we do not leak internal path
-      throw new WarpScriptException(getName() + " error opening Git repository '" + repo + "'.");
+      throw GitWarpScriptExtension.error(getName() + " error opening Git repository '" + repo + "'", e);
     } finally {
-      if (null != git) {
-        git.close();
+      if (null != handle) {
+        handle.close();
       }
     }
 
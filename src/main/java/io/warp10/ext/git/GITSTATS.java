@@ -0,0 +1,74 @@
+//
+//   Copyright 2021  SenX S.A.S.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.ext.git;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import io.warp10.script.NamedWarpScriptFunction;
+import io.warp10.script.WarpScriptException;
+import io.warp10.script.WarpScriptStack;
+import io.warp10.script.WarpScriptStackFunction;
+
+public class GITSTATS extends NamedWarpScriptFunction implements WarpScriptStackFunction {
+
+  public GITSTATS(String name) {
+    super(name);
+  }
+
+  @Override
+  public Object apply(WarpScriptStack stack) throws WarpScriptException {
+
+    Object top = stack.pop();
+
+    if (!(top instanceof Map)) {
+      throw new WarpScriptException(getName() + " expects a parameter MAP.");
+    }
+
+    Map<Object,Object> params = (Map<Object,Object>) top;
+
+    //
+    // The status of a repository is only returned if the stack has the capability for that repository
+    //
+
+    String repo = null;
+
+    if (null != params.get(GitWarpScriptExtension.PARAM_REPO)) {
+      repo = GitSession.get(stack, getName(), params.get(GitWarpScriptExtension.PARAM_REPO)).getRepo();
+    }
+
+    Map<Object,Object> stats = new LinkedHashMap<Object,Object>();
+
+    GitWarpScriptExtension.getBlobCache().stats(stats);
+    GitWarpScriptExtension.getPathCache().stats(stats);
+    GitWarpScriptExtension.getListingCache().stats(stats);
+
+    if (null != repo) {
+      GitMaintenance.stats(repo, stats);
+      try {
+        GitWarpScriptExtension.getMemoryRepositories().stats(repo, stats);
+      } catch (IOException ioe) {
+        throw GitWarpScriptExtension.error(getName() + " error reading in-memory repository '" + repo + "'", ioe);
+      }
+    }
+
+    stack.push(stats);
+
+    return stack;
+  }
+}
@@ -16,25 +16,17 @@
 
 package io.warp10.ext.git;
 
-import java.io.File;
-import java.io.IOException;
 import java.nio.charset.StandardCharsets;
-import java.util.List;
+import java.util.LinkedHashMap;
 import java.util.Map;
 
-import org.apache.commons.io.FileUtils;
-import org.eclipse.jgit.api.AddCommand;
-import org.eclipse.jgit.api.CommitCommand;
-import org.eclipse.jgit.api.Git;
-import org.eclipse.jgit.api.errors.EmptyCommitException;
-import org.eclipse.jgit.lib.Constants;
-import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.PersonIdent;
 
 import io.warp10.script.NamedWarpScriptFunction;
 import io.warp10.script.WarpScriptException;
 import io.warp10.script.WarpScriptStack;
 import io.warp10.script.WarpScriptStackFunction;
-import io.warp10.warp.sdk.Capabilities;
 
 public class GITSTORE extends NamedWarpScriptFunction implements WarpScriptStackFunction {
 
@@ -59,123 +51,123 @@ public class GITSTORE extends NamedWarpScriptFunction implements WarpScriptStack
 
     String message = (String) params.get(GitWarpScriptExtension.PARAM_MESSAGE);
 
-    if (!(params.get(GitWarpScriptExtension.PARAM_PATH) instanceof String)) {
-      throw new WarpScriptException(getName() + " unset path under key '" + GitWarpScriptExtension.PARAM_PATH + "'.");
+    if (null != params.get(GitWarpScriptExtension.PARAM_PARENT) && !(params.get(GitWarpScriptExtension.PARAM_PARENT) instanceof String)) {
+      throw new WarpScriptException(getName() + " expects the expected parent revision under key '" + GitWarpScriptExtension.PARAM_PARENT + "' to be a STRING.");
     }
 
-    String path = (String) params.get(GitWarpScriptExtension.PARAM_PATH);
+    String parent = (String) params.get(GitWarpScriptExtension.PARAM_PARENT);
+    boolean rebase = Boolean.TRUE.equals(params.get(GitWarpScriptExtension.PARAM_REBASE));
 
-    if (!(params.get(GitWarpScriptExtension.PARAM_REPO) instanceof String)) {
-      throw new WarpScriptException(getName() + " unset repository under key '" + GitWarpScriptExtension.PARAM_REPO + "'.");
-    }
-
-    boolean noworkdir = Boolean.FALSE.equals(params.get(GitWarpScriptExtension.PARAM_WORKDIR));
-
-    String repo = (String) params.get(GitWarpScriptExtension.PARAM_REPO);
+    //
+    // Content to store is either a single 'content' under 'path' or a map of path to content
+    // under 'files', in the latter case a NULL content removes the path.
+    //
 
-    byte[] content = null;
+    Map<String,byte[]> files = new LinkedHashMap<String,byte[]>();
 
-    if (params.get(GitWarpScriptExtension.PARAM_CONTENT) instanceof String) {
-      content = ((String) params.get(GitWarpScriptExtension.PARAM_CONTENT)).getBytes(StandardCharsets.UTF_8);
-    } else if (params.get(GitWarpScriptExtension.PARAM_CONTENT) instanceof byte[]) {
-      content = (byte[]) params.get(GitWarpScriptExtension.PARAM_CONTENT);
+    if (params.get(GitWarpScriptExtension.PARAM_FILES) instanceof Map) {
+      for (Map.Entry<Object,Object> entry: ((Map<Object,Object>) params.get(GitWarpScriptExtension.PARAM_FILES)).entrySet()) {
+        if (!(entry.getKey() instanceof String)) {
+          throw new WarpScriptException(getName() + " expects paths of type STRING under key '" + GitWarpScriptExtension.PARAM_FILES + "'.");
+        }
+        if (null == entry.getValue()) {
+          files.put((String) entry.getKey(), null);
+        } else {
+          files.put((String) entry.getKey(), toBytes(entry.getValue(), GitWarpScriptExtension.PARAM_FILES));
+        }
+      }
+    } else if (null != params.get(GitWarpScriptExtension.PARAM_FILES)) {
+      throw new WarpScriptException(getName() + " expects a MAP of path to content under key '" + GitWarpScriptExtension.PARAM_FILES + "'.");
     } else {
-      throw new WarpScriptException(getName() + " can only store content of type STRING or BYTES, specified under key '" + GitWarpScriptExtension.PARAM_CONTENT + "'.");
-    }
-
-    //
-    // Check that the root is configured and that the stack has the correct capability
-    //
+      if (!(params.get(GitWarpScriptExtension.PARAM_PATH) instanceof String)) {
+        throw new WarpScriptException(getName() + " unset path under key '" + GitWarpScriptExtension.PARAM_PATH + "'.");
+      }
 
-    if (null == GitWarpScriptExtension.getRoot()) {
-      throw new WarpScriptException(getName() + " Git root was not configured.");
+      files.put((String) params.get(GitWarpScriptExtension.PARAM_PATH), toBytes(params.get(GitWarpScriptExtension.PARAM_CONTENT), GitWarpScriptExtension.PARAM_CONTENT));
     }
 
     //
-    // Check that the stack has the right capability
+    // Check that the stack has the right capability, a session was checked when it was opened
     //
-    Map<String,String> capabilities = Capabilities.get(stack, (List) null);
 
-    if (!repo.equals(capabilities.get(GitWarpScriptExtension.CAP_GITREPO))) {
-      throw new WarpScriptException(getName() + " missing or invalid '" + GitWarpScriptExtension.CAP_GITREPO + "' capability.");
-    }
+    GitSession session = GitSession.get(stack, getName(), params.get(GitWarpScriptExtension.PARAM_REPO));
+    String repo = session.getRepo();
+    Map<String,String> capabilities = session.getCapabilities();
 
     if (null != capabilities.get(GitWarpScriptExtension.CAP_GITRO)) {
       throw new WarpScriptException(getName() + " no right to modify repository '" + repo + "'.");
     }
 
     //
-    // Add git.subdir prefix to path if defined
+    // Add git.subdir prefix to paths if defined
     //
 
-    if (null != capabilities.get(GitWarpScriptExtension.CAP_GITSUBDIR)) {
-      path = capabilities.get(GitWarpScriptExtension.CAP_GITSUBDIR) + "/" + path;
-    }
+    String subdir = capabilities.get(GitWarpScriptExtension.CAP_GITSUBDIR);
 
-    //
-    // Create the directories needed for 'path' and store 'content' in path
-    //
+    Map<String,byte[]> changes = new LinkedHashMap<String,byte[]>();
 
-    if (path.contains("/../") || path.contains("/./") || path.startsWith("./") || path.startsWith("../") || path.startsWith("/")) {
-      throw new WarpScriptException(getName() + " invalid path.");
-    }
+    for (Map.Entry<String,byte[]> file: files.entrySet()) {
+      String path = file.getKey();
 
-    File repodir = new File(GitWarpScriptExtension.getRoot(), repo);
-    File target = new File(repodir, path);
+      if (null != subdir) {
+        path = subdir + "/" + path;
+      }
 
-    Git git = null;
+      if (path.contains("/../") || path.contains("/./") || path.startsWith("./") || path.startsWith("../") || path.startsWith("/")) {
+        throw new WarpScriptException(getName() + " invalid path.");
+      }
 
-    try {
-      git = Git.open(new File(GitWarpScriptExtension.getRoot(), repo));
+      changes.put(path, file.getValue());
+    }
 
-      if (!target.exists()) {
-        try {
-          FileUtils.forceMkdir(target.getParentFile());
-        } catch (IOException ioe) {
-          throw new WarpScriptException(getName() + " error creating path.", ioe);
-        }
-      } else if (target.exists() && target.isDirectory()) {
-        throw new WarpScriptException(getName() + " path points to a directory.");
-      }
+    GitRepositoryCache.Handle handle = null;
 
-      try {
-        FileUtils.writeByteArrayToFile(target, content);
-      } catch (IOException ioe) {
-        throw new WarpScriptException(getName() + " error writing file content.", ioe);
-      }
+    try {
+      handle = session.acquire();
 
-      AddCommand add = git.add();
-      add.addFilepattern(path);
-      add.call();
+      //
+      // All the changes are committed at once directly in the object database, the
+      // working directory and the index are not modified.
+      //
 
-      CommitCommand commit = git.commit();
       // Extract author and email from capabilities gituser and gitemail if set
-      commit.setAuthor(capabilities.getOrDefault(GitWarpScriptExtension.CAP_GITNAME, "warp10-ext-git"), capabilities.getOrDefault(GitWarpScriptExtension.CAP_GITEMAIL, "contact@senx.io"));
-      commit.setAllowEmpty(false);
-      commit.setCommitter("warp10-ext-git", "contact@senx.io");
-      commit.setMessage(message);
-
-      RevCommit rev = commit.call();
-
-      // Attempt to remove the file, we do not need it since it is now under git's responsibility
-      // This might lead to incorrect content being written if another thread is attempting to
-      // write the same file at the same instant, but such a situation could also occur without the
-      // delete operation anyways, so might as well clean up after our own commit.
-      if (noworkdir) {
-        org.eclipse.jgit.util.FileUtils.delete(target, org.eclipse.jgit.util.FileUtils.IGNORE_ERRORS);
+      PersonIdent author = new PersonIdent(capabilities.getOrDefault(GitWarpScriptExtension.CAP_GITNAME, "warp10-ext-git"), capabilities.getOrDefault(GitWarpScriptExtension.CAP_GITEMAIL, "contact@senx.io"));
+      PersonIdent committer = new PersonIdent("warp10-ext-git", "contact@senx.io");
+
+      ObjectId expected = session.expected(handle.getRepository(), parent);
+
+      ObjectId rev = GitWriteQueue.get(repo).commit(handle.getRepository(), changes, author, committer, message, expected, rebase);
+
+      for (byte[] content: changes.values()) {
+        if (null != content) {
+          GitMetrics.written(content.length);
+        }
       }
-      stack.push(rev.getId().name());
-    } catch (EmptyCommitException ece) {
-      stack.push(null);
+
+      // Reads through a session see its own writes
+      session.advance(rev);
+
+      stack.push(null == rev ? null : rev.name());
+    } catch (GitConflictException gce) {
+      stack.push(gce.toInfos());
     } catch (Exception e) {
-      // Do not include original exception so we do not leak internal path
-      throw new WarpScriptException(getName() + " error opening Git repository '" + repo + "'.");
+      throw GitWarpScriptExtension.error(getName() + " error opening Git repository '" + repo + "'", e);
     } finally {
-      if (null != git) {
-        git.close();
+      if (null != handle) {
+        handle.close();
       }
     }
 
     return stack;
   }
+
+  private byte[] toBytes(Object content, String key) throws WarpScriptException {
+    if (content instanceof String) {
+      return ((String) content).getBytes(StandardCharsets.UTF_8);
+    } else if (content instanceof byte[]) {
+      return (byte[]) content;
+    } else {
+      throw new WarpScriptException(getName() + " can only store content of type STRING or BYTES, specified under key '" + key + "'.");
+    }
+  }
 }
@@ -16,8 +16,7 @@
 
 package io.warp10.ext.git;
 
-import java.io.File;
-import java.util.List;
+import java.io.IOException;
 import java.util.Map;
 
 import org.eclipse.jgit.api.Git;
@@ -25,7 +24,12 @@ import org.eclipse.jgit.api.LogCommand;
 import org.eclipse.jgit.api.TagCommand;
 import org.eclipse.jgit.lib.Constants;
 import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
 import org.eclipse.jgit.lib.PersonIdent;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.RefUpdate;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.lib.TagBuilder;
 import org.eclipse.jgit.revwalk.RevCommit;
 import org.eclipse.jgit.revwalk.RevWalk;
 
@@ -33,7 +37,6 @@ import io.warp10.script.NamedWarpScriptFunction;
 import io.warp10.script.WarpScriptException;
 import io.warp10.script.WarpScriptStack;
 import io.warp10.script.WarpScriptStackFunction;
-import io.warp10.warp.sdk.Capabilities;
 
 public class GITTAG extends NamedWarpScriptFunction implements WarpScriptStackFunction {
 
@@ -72,28 +75,19 @@ public class GITTAG extends NamedWarpScriptFunction implements WarpScriptStackFu
       rev = (String) params.get(GitWarpScriptExtension.PARAM_REV);
     }
 
-    if (!(params.get(GitWarpScriptExtension.PARAM_REPO) instanceof String)) {
-      throw new WarpScriptException(getName() + " unset repository under key '" + GitWarpScriptExtension.PARAM_REPO + "'.");
+    if (null != params.get(GitWarpScriptExtension.PARAM_PARENT) && !(params.get(GitWarpScriptExtension.PARAM_PARENT) instanceof String)) {
+      throw new WarpScriptException(getName() + " expects the expected revision under key '" + GitWarpScriptExtension.PARAM_PARENT + "' to be a STRING.");
     }
 
-    String repo = (String) params.get(GitWarpScriptExtension.PARAM_REPO);
+    String parent = (String) params.get(GitWarpScriptExtension.PARAM_PARENT);
 
     //
-    // Check that the root is configured and that the stack has the correct capability
+    // Check that the stack has the right capability, a session was checked when it was opened
     //
 
-    if (null == GitWarpScriptExtension.getRoot()) {
-      throw new WarpScriptException(getName() + " Git root was not configured.");
-    }
-
-    //
-    // Check that the stack has the right capability
-    //
-    Map<String,String> capabilities = Capabilities.get(stack, (List) null);
-
-    if (!repo.equals(capabilities.get(GitWarpScriptExtension.CAP_GITREPO))) {
-      throw new WarpScriptException(getName() + " missing or invalid '" + GitWarpScriptExtension.CAP_GITREPO + "' capability.");
-    }
+    GitSession session = GitSession.get(stack, getName(), params.get(GitWarpScriptExtension.PARAM_REPO));
+    String repo = session.getRepo();
+    Map<String,String> capabilities = session.getCapabilities();
 
     if (null != capabilities.get(GitWarpScriptExtension.CAP_GITRO)) {
       throw new WarpScriptException(getName() + " no right to modify repository '" + repo + "'.");
@@ -109,52 +103,137 @@ public class GITTAG extends NamedWarpScriptFunction implements WarpScriptStackFu
       path = capabilities.get(GitWarpScriptExtension.CAP_GITSUBDIR);
     }
 
-    Git git = null;
+    GitRepositoryCache.Handle handle = null;
 
     try {
-      git = Git.open(new File(GitWarpScriptExtension.getRoot(), repo));
-
-      // If capability 'git.subdir' is set, determine the first revision before the provided one which affected 'git.subdir'
-      RevCommit revcommit = null;
-
-      if (null != path) {
-        LogCommand log = git.log();
-        ObjectId oid = git.getRepository().resolve(rev);
-        log.add(oid);
-        log.addPath(path);
-
-        for (RevCommit rc: log.call()) {
-          revcommit = rc;
-          break;
-        }
-
-        if (null == revcommit) {
-          throw new WarpScriptException(getName() + " invalid revision '" + rev + "', be more specific via key '" + GitWarpScriptExtension.PARAM_REV + "'.");
-        }
-      } else {
-        RevWalk rwalk = new RevWalk(git.getRepository());
-        revcommit = rwalk.parseCommit(git.getRepository().resolve(rev));
+      handle = session.acquire();
+      Git git = handle.getGit();
+
+      GitWarpScriptExtension.getMemoryRepositories().check(repo, git.getRepository(), tag.length() + message.length());
+
+      PersonIdent person = new PersonIdent(capabilities.getOrDefault(GitWarpScriptExtension.CAP_GITNAME, "warp10-ext-git"), capabilities.getOrDefault(GitWarpScriptExtension.CAP_GITEMAIL, "contact@senx.io"));
+
+      stack.push(tag(git, session, rev, parent, path, tag, message, force, person));
+    } catch (WarpScriptException wse) {
+      throw wse;
+    } catch (Exception e) {
+      throw GitWarpScriptExtension.error(getName() + " error adding tag '" + tag + "' to repository '" + repo + "'", e);
+    } finally {
+      if (null != handle) {
+        handle.close();
+      }
+    }
+
+    return stack;
+  }
+
+  /**
+   * Tag the commit 'rev' resolves to
+   *
+   * @param parent Commit the tag is expected to point to, or null
+   * @param path Subdirectory of the capability 'git.subdir', or null
+   * @return The name of the tag ref, or the infos of the conflict if the tag does not point to 'parent'
+   */
+  private Object tag(Git git, GitSession session, String rev, String parent, String path, String tag, String message, boolean force, PersonIdent person) throws Exception {
+    // If capability 'git.subdir' is set, determine the first revision before the provided one which affected 'git.subdir'
+    RevCommit revcommit = null;
+
+    if (null != path) {
+      LogCommand log = git.log();
+      ObjectId oid = session.resolve(git.getRepository(), rev);
+      log.add(oid);
+      log.addPath(path);
+
+      for (RevCommit rc: log.call()) {
+        revcommit = rc;
+        break;
+      }
+
+      if (null == revcommit) {
+        throw new WarpScriptException(getName() + " invalid revision '" + rev + "', be more specific via key '" + GitWarpScriptExtension.PARAM_REV + "'.");
+      }
+    } else {
+      try (RevWalk rwalk = new RevWalk(git.getRepository())) {
+        revcommit = rwalk.parseCommit(session.resolve(git.getRepository(), rev));
       }
+    }
 
+    if (null == parent) {
       TagCommand tc = git.tag();
       tc.setForceUpdate(force);
       tc.setAnnotated(true);
       tc.setName(tag);
       tc.setMessage(message);
       tc.setObjectId(revcommit);
-      PersonIdent person = new PersonIdent(capabilities.getOrDefault(GitWarpScriptExtension.CAP_GITNAME, "warp10-ext-git"), capabilities.getOrDefault(GitWarpScriptExtension.CAP_GITEMAIL, "contact@senx.io"));
       tc.setTagger(person);
 
-      stack.push(tc.call().getName());
-    } catch (Exception e) {
-      // Do not include original exception so we do not leak internal path
-      throw new WarpScriptException(getName() + " error adding tag '" + tag + "' to repository  '" + repo + "'.");
-    } finally {
-      if (null != git) {
-        git.close();
+      return tc.call().getName();
+    }
+
+    //
+    // If an expected parent was specified, the tag ref is only moved if it still points to it.
+    // The ref update is a compare-and-swap on the id of the tag ref which was checked.
+    //
+
+    Repository repository = git.getRepository();
+    String name = Constants.R_TAGS + tag;
+
+    if (!Repository.isValidRefName(name)) {
+      throw new WarpScriptException(getName() + " invalid tag name '" + tag + "'.");
+    }
+
+    Ref ref = repository.exactRef(name);
+    ObjectId current = peel(repository, ref);
+
+    if (null == current || !current.equals(session.resolve(repository, parent))) {
+      return new GitConflictException(current).toInfos();
+    }
+
+    TagBuilder tb = new TagBuilder();
+    tb.setTag(tag);
+    tb.setObjectId(revcommit);
+    tb.setTagger(person);
+    tb.setMessage(message);
+
+    try (ObjectInserter inserter = repository.newObjectInserter(); RevWalk rwalk = new RevWalk(repository)) {
+      ObjectId id = inserter.insert(tb);
+      inserter.flush();
+
+      RefUpdate ru = repository.updateRef(name);
+      ru.setNewObjectId(id);
+      ru.setExpectedOldObjectId(ref.getObjectId());
+      // Replacing a tag is never a fast forward
+      ru.setForceUpdate(true);
+      ru.setRefLogMessage("tagged " + tag, false);
+
+      switch (ru.update(rwalk)) {
+        case NEW:
+        case FAST_FORWARD:
+        case FORCED:
+        case NO_CHANGE:
+          return name;
+        case LOCK_FAILURE:
+        case REJECTED:
+          // The tag was modified concurrently
+          return new GitConflictException(peel(repository, repository.exactRef(name))).toInfos();
+        default:
+          throw new IOException("Unable to update tag '" + tag + "'.");
       }
     }
+  }
+
+  /**
+   * Return the commit a tag ref points to, or null if the ref does not exist
+   */
+  private static ObjectId peel(Repository repository, Ref ref) throws IOException {
+    if (null == ref) {
+      return null;
+    }
 
-    return stack;
+    if (!ref.isPeeled()) {
+      ref = repository.getRefDatabase().peel(ref);
+    }
+
+    return null == ref.getPeeledObjectId() ? ref.getObjectId() : ref.getPeeledObjectId();
   }
 }
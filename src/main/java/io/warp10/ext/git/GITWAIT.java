@@ -0,0 +1,97 @@
+//
+//   Copyright 2021  SenX S.A.S.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.ext.git;
+
+import java.util.Map;
+
+import org.eclipse.jgit.lib.ObjectId;
+
+import io.warp10.continuum.store.Constants;
+import io.warp10.script.NamedWarpScriptFunction;
+import io.warp10.script.WarpScriptException;
+import io.warp10.script.WarpScriptStack;
+import io.warp10.script.WarpScriptStackFunction;
+
+/**
+ * Waits until the HEAD of a repository moves away from a given commit.
+ */
+public class GITWAIT extends NamedWarpScriptFunction implements WarpScriptStackFunction {
+
+  public GITWAIT(String name) {
+    super(name);
+  }
+
+  @Override
+  public Object apply(WarpScriptStack stack) throws WarpScriptException {
+
+    Object top = stack.pop();
+
+    if (!(top instanceof Map)) {
+      throw new WarpScriptException(getName() + " expects a parameter MAP.");
+    }
+
+    Map<Object,Object> params = (Map<Object,Object>) top;
+
+    String rev = null;
+
+    if (params.get(GitWarpScriptExtension.PARAM_REV) instanceof String) {
+      rev = (String) params.get(GitWarpScriptExtension.PARAM_REV);
+    }
+
+    //
+    // The timeout is expressed in platform time units and capped by the configuration
+    //
+
+    long timeout = GitWarpScriptExtension.getWaitMaxTimeout();
+
+    if (params.get(GitWarpScriptExtension.PARAM_TIMEOUT) instanceof Long) {
+      timeout = Math.max(0L, Math.min(timeout, ((Long) params.get(GitWarpScriptExtension.PARAM_TIMEOUT)) / Constants.TIME_UNITS_PER_MS));
+    }
+
+    //
+    // Check that the stack has the right capability, a session was checked when it was opened
+    //
+
+    GitSession session = GitSession.get(stack, getName(), params.get(GitWarpScriptExtension.PARAM_REPO));
+    String repo = session.getRepo();
+
+    try {
+      ObjectId current;
+
+      try (GitRepositoryCache.Handle handle = session.acquire()) {
+        current = session.resolve(handle.getRepository(), null == rev ? org.eclipse.jgit.lib.Constants.HEAD : rev + "^{commit}");
+      }
+
+      if (null != rev && null == current) {
+        throw new WarpScriptException(getName() + " revision '" + rev + "' was not found in repository '" + repo + "'.");
+      }
+
+      ObjectId head = GitHeadWatcher.get(repo).await(repo, current, timeout, GitWarpScriptExtension.getWaitPoll());
+
+      stack.push(null == head ? null : head.name());
+    } catch (InterruptedException ie) {
+      Thread.currentThread().interrupt();
+      throw new WarpScriptException(getName() + " was interrupted.");
+    } catch (WarpScriptException wse) {
+      throw wse;
+    } catch (Exception e) {
+      throw GitWarpScriptExtension.error(getName() + " error opening Git repository '" + repo + "'", e);
+    }
+
+    return stack;
+  }
+}
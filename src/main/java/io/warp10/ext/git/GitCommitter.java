@@ -0,0 +1,378 @@
+//
+//   Copyright 2021  SenX S.A.S.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.ext.git;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.eclipse.jgit.errors.IncorrectObjectTypeException;
+import org.eclipse.jgit.errors.MissingObjectException;
+import org.eclipse.jgit.lib.CommitBuilder;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.FileMode;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.lib.PersonIdent;
+import org.eclipse.jgit.lib.RefUpdate;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.lib.TreeFormatter;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevTree;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.treewalk.CanonicalTreeParser;
+import org.eclipse.jgit.treewalk.EmptyTreeIterator;
+import org.eclipse.jgit.treewalk.TreeWalk;
+import org.eclipse.jgit.treewalk.filter.AndTreeFilter;
+import org.eclipse.jgit.treewalk.filter.PathFilterGroup;
+import org.eclipse.jgit.treewalk.filter.TreeFilter;
+
+/**
+ * Creates commits directly in the object database of a repository.
+ *
+ * Neither the working directory nor the index are used, the new tree is built from
+ * the tree of the parent commit by rewriting only the trees along the modified paths.
+ * This works on bare and non bare repositories alike, in the latter case the working
+ * directory and the index are left untouched.
+ */
+public class GitCommitter {
+
+  /**
+   * Maximum number of attempts at updating the ref when it is concurrently modified
+   */
+  private static final int MAX_ATTEMPTS = 16;
+
+  /**
+   * Node of the tree of modifications to apply
+   */
+  private static class Edit {
+    /**
+     * Id of the blob to store at this path, null if this is a deletion or an intermediate directory
+     */
+    private ObjectId blob = null;
+    private boolean delete = false;
+    /**
+     * Set when the existing content at this path must be discarded before applying the children edits
+     */
+    private boolean reset = false;
+    private TreeMap<String,Edit> children = null;
+
+    private boolean isLeaf() {
+      return null == this.children;
+    }
+  }
+
+  /**
+   * Entry of a tree being rebuilt
+   */
+  private static class Entry {
+    private final String name;
+    private final FileMode mode;
+    private final ObjectId id;
+
+    private Entry(String name, FileMode mode, ObjectId id) {
+      this.name = name;
+      this.mode = mode;
+      this.id = id;
+    }
+  }
+
+  /**
+   * Entries sorted in git order, i.e. trees sorted as if their name ended with '/'
+   */
+  private static final Comparator<Entry> ENTRY_COMPARATOR = new Comparator<Entry>() {
+    @Override
+    public int compare(Entry e1, Entry e2) {
+      byte[] n1 = e1.name.getBytes(StandardCharsets.UTF_8);
+      byte[] n2 = e2.name.getBytes(StandardCharsets.UTF_8);
+      int len = Math.min(n1.length, n2.length);
+      for (int i = 0; i < len; i++) {
+        int cmp = (n1[i] & 0xFF) - (n2[i] & 0xFF);
+        if (0 != cmp) {
+          return cmp;
+        }
+      }
+      int c1 = n1.length > len ? n1[len] & 0xFF : (FileMode.TREE.equals(e1.mode) ? '/' : 0);
+      int c2 = n2.length > len ? n2[len] & 0xFF : (FileMode.TREE.equals(e2.mode) ? '/' : 0);
+      return c1 - c2;
+    }
+  };
+
+  /**
+   * Commit modifications on top of the commit currently referenced by HEAD.
+   *
+   * @param repository Repository to modify
+   * @param changes Map of path to content, a null content means the path (file or directory) should be removed
+   * @param author Author of the commit
+   * @param committer Committer of the commit
+   * @param message Commit message
+   * @return The id of the new commit or null if the changes did not modify the tree
+   */
+  public static ObjectId commit(Repository repository, Map<String,byte[]> changes, PersonIdent author, PersonIdent committer, String message) throws IOException {
+    return commit(repository, changes, author, committer, message, null, false);
+  }
+
+  /**
+   * Commit modifications on top of an expected parent commit.
+   *
+   * HEAD is only moved if it still points to 'expected' (compare-and-swap). If it does not
+   * and 'rebase' is true, the changes are applied on top of the current HEAD provided none of
+   * the modified paths were touched between 'expected' and HEAD.
+   *
+   * @param expected Commit HEAD is expected to point to, or null to commit on top of the current HEAD
+   * @param rebase Rebase the changes on the current HEAD if they do not conflict with the changes since 'expected'
+   * @throws GitConflictException if HEAD does not point to 'expected' and the changes could not be rebased
+   */
+  public static ObjectId commit(Repository repository, Map<String,byte[]> changes, PersonIdent author, PersonIdent committer, String message, ObjectId expected, boolean rebase) throws IOException {
+
+    if (changes.isEmpty()) {
+      return null;
+    }
+
+    try (ObjectInserter inserter = repository.newObjectInserter(); ObjectReader reader = inserter.newReader(); RevWalk rwalk = new RevWalk(reader)) {
+
+      //
+      // Insert the blobs once, they do not depend on the parent commit
+      //
+
+      Edit root = new Edit();
+
+      for (Map.Entry<String,byte[]> change: changes.entrySet()) {
+        ObjectId blob = null == change.getValue() ? null : inserter.insert(Constants.OBJ_BLOB, change.getValue());
+        add(root, change.getKey(), blob);
+      }
+
+      for (int attempt = 0; attempt < MAX_ATTEMPTS; attempt++) {
+        ObjectId parent = repository.resolve(Constants.HEAD);
+
+        if (null != expected && !expected.equals(parent)) {
+          if (!rebase || null == parent || overlaps(rwalk, expected, parent, changes.keySet())) {
+            throw new GitConflictException(parent);
+          }
+        }
+
+        ObjectId basetree = null;
+
+        if (null != parent) {
+          RevCommit pcommit = rwalk.parseCommit(parent);
+          basetree = pcommit.getTree();
+        }
+
+        ObjectId tree = edit(reader, inserter, basetree, root);
+
+        if (null == tree) {
+          // Nothing to commit in an empty repository
+          if (null == basetree) {
+            return null;
+          }
+          tree = inserter.insert(new TreeFormatter());
+        }
+
+        if (tree.equals(basetree)) {
+          return null;
+        }
+
+        CommitBuilder cb = new CommitBuilder();
+        cb.setTreeId(tree);
+        if (null != parent) {
+          cb.setParentId(parent);
+        }
+        cb.setAuthor(author);
+        cb.setCommitter(committer);
+        cb.setMessage(message);
+
+        ObjectId commit = inserter.insert(cb);
+        inserter.flush();
+
+        RefUpdate ru = repository.updateRef(Constants.HEAD);
+        ru.setNewObjectId(commit);
+        ru.setExpectedOldObjectId(null == parent ? ObjectId.zeroId() : parent);
+        ru.setRefLogMessage("commit: " + firstLine(message), false);
+
+        switch (ru.update(rwalk)) {
+          case NEW:
+          case FAST_FORWARD:
+          case FORCED:
+            return commit;
+          case LOCK_FAILURE:
+            // HEAD was modified concurrently, rebuild on top of the new HEAD
+            GitMetrics.retried();
+            try {
+              Thread.sleep(1L << Math.min(attempt, 6));
+            } catch (InterruptedException ie) {
+              Thread.currentThread().interrupt();
+              throw new IOException("Interrupted while updating HEAD.");
+            }
+            break;
+          default:
+            throw new IOException("Unable to update HEAD.");
+        }
+      }
+
+      throw new IOException("Unable to update HEAD after " + MAX_ATTEMPTS + " attempts.");
+    }
+  }
+
+  /**
+   * Check whether some of the paths were modified between two commits
+   */
+  private static boolean overlaps(RevWalk rwalk, ObjectId from, ObjectId to, Collection<String> paths) throws IOException {
+    RevTree fromtree;
+
+    try {
+      fromtree = rwalk.parseCommit(from).getTree();
+    } catch (MissingObjectException|IncorrectObjectTypeException e) {
+      // An unknown parent cannot be rebased
+      return true;
+    }
+
+    try (TreeWalk twalk = new TreeWalk(rwalk.getObjectReader())) {
+      twalk.addTree(fromtree);
+      twalk.addTree(rwalk.parseCommit(to).getTree());
+      twalk.setRecursive(true);
+      twalk.setFilter(AndTreeFilter.create(PathFilterGroup.createFromStrings(paths), TreeFilter.ANY_DIFF));
+      return twalk.next();
+    }
+  }
+
+  /**
+   * Check whether a commit modified some of the paths with respect to its first parent
+   */
+  static boolean modifies(Repository repository, ObjectId commit, Collection<String> paths) throws IOException {
+    try (RevWalk rwalk = new RevWalk(repository); TreeWalk twalk = new TreeWalk(repository)) {
+      RevCommit rcommit = rwalk.parseCommit(commit);
+      if (0 == rcommit.getParentCount()) {
+        twalk.addTree(new EmptyTreeIterator());
+      } else {
+        twalk.addTree(rwalk.parseCommit(rcommit.getParent(0)).getTree());
+      }
+      twalk.addTree(rcommit.getTree());
+      twalk.setRecursive(true);
+      twalk.setFilter(AndTreeFilter.create(PathFilterGroup.createFromStrings(paths), TreeFilter.ANY_DIFF));
+      return twalk.next();
+    }
+  }
+
+  private static String firstLine(String message) {
+    int idx = message.indexOf('\n');
+    return idx < 0 ? message : message.substring(0, idx);
+  }
+
+  /**
+   * Record a modification in the tree of edits
+   *
+   * @param blob Id of the blob to store at 'path' or null to delete 'path'
+   */
+  private static void add(Edit root, String path, ObjectId blob) throws IOException {
+    String[] elts = path.split("/", -1);
+
+    Edit node = root;
+
+    for (int i = 0; i < elts.length; i++) {
+      if (elts[i].isEmpty() || ".".equals(elts[i]) || "..".equals(elts[i]) || ".git".equals(elts[i])) {
+        throw new IOException("Invalid path.");
+      }
+
+      if (null == node.children) {
+        node.children = new TreeMap<String,Edit>();
+        node.reset = node.delete || null != node.blob;
+        node.blob = null;
+        node.delete = false;
+      }
+
+      Edit child = node.children.get(elts[i]);
+
+      if (i == elts.length - 1) {
+        // Any modification previously recorded under this path is superseded
+        child = new Edit();
+        child.blob = blob;
+        child.delete = null == blob;
+        node.children.put(elts[i], child);
+      } else {
+        if (null == child) {
+          child = new Edit();
+          node.children.put(elts[i], child);
+        }
+        node = child;
+      }
+    }
+  }
+
+  /**
+   * Apply edits to a tree, only the subtrees which are modified are read and rewritten.
+   *
+   * @param tree Id of the tree to modify, null if it does not exist yet
+   * @return The id of the new tree or null if the resulting tree is empty
+   */
+  private static ObjectId edit(ObjectReader reader, ObjectInserter inserter, ObjectId tree, Edit edits) throws IOException {
+    Map<String,Entry> entries = new TreeMap<String,Entry>();
+
+    if (null != tree) {
+      CanonicalTreeParser parser = new CanonicalTreeParser(null, reader, tree);
+      while (!parser.eof()) {
+        entries.put(parser.getEntryPathString(), new Entry(parser.getEntryPathString(), parser.getEntryFileMode(), parser.getEntryObjectId()));
+        parser.next();
+      }
+    }
+
+    for (Map.Entry<String,Edit> child: edits.children.entrySet()) {
+      String name = child.getKey();
+      Edit edit = child.getValue();
+      Entry current = entries.get(name);
+
+      if (edit.isLeaf()) {
+        if (edit.delete) {
+          entries.remove(name);
+        } else if (null != current && FileMode.TREE.equals(current.mode)) {
+          throw new IOException("Path points to a directory.");
+        } else {
+          FileMode mode = null != current && FileMode.EXECUTABLE_FILE.equals(current.mode) ? FileMode.EXECUTABLE_FILE : FileMode.REGULAR_FILE;
+          entries.put(name, new Entry(name, mode, edit.blob));
+        }
+      } else {
+        ObjectId subtree = !edit.reset && null != current && FileMode.TREE.equals(current.mode) ? current.id : null;
+        ObjectId id = edit(reader, inserter, subtree, edit);
+        if (null == id) {
+          entries.remove(name);
+        } else {
+          entries.put(name, new Entry(name, FileMode.TREE, id));
+        }
+      }
+    }
+
+    if (entries.isEmpty()) {
+      return null;
+    }
+
+    List<Entry> sorted = new ArrayList<Entry>(entries.values());
+    Collections.sort(sorted, ENTRY_COMPARATOR);
+
+    TreeFormatter fmt = new TreeFormatter();
+    for (Entry entry: sorted) {
+      fmt.append(entry.name, entry.mode, entry.id);
+    }
+
+    return inserter.insert(fmt);
+  }
+}
@@ -0,0 +1,55 @@
+//
+//   Copyright 2021  SenX S.A.S.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.ext.git;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.eclipse.jgit.lib.ObjectId;
+
+/**
+ * Thrown when a write expected HEAD to point to a given commit and it did not.
+ */
+public class GitConflictException extends IOException {
+
+  private static final long serialVersionUID = 1L;
+
+  /**
+   * Commit HEAD was pointing to when the conflict was detected, null for an empty repository
+   */
+  private final ObjectId head;
+
+  public GitConflictException(ObjectId head) {
+    super("HEAD does not point to the expected parent.");
+    this.head = head;
+  }
+
+  public ObjectId getHead() {
+    return this.head;
+  }
+
+  /**
+   * Result pushed on the stack by functions which detected a conflict
+   */
+  public Map<Object,Object> toInfos() {
+    Map<Object,Object> infos = new LinkedHashMap<Object,Object>();
+    infos.put(GitWarpScriptExtension.INFOS_CONFLICT, true);
+    infos.put(GitWarpScriptExtension.INFOS_REV, null == this.head ? null : this.head.name());
+    return infos;
+  }
+}
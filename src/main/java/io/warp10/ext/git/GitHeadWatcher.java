@@ -0,0 +1,127 @@
+//
+//   Copyright 2021  SenX S.A.S.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.ext.git;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Ref;
+
+/**
+ * Lets callers wait for the HEAD of a repository to move.
+ *
+ * Writers of the extension signal the watcher after each commit so waiters wake up immediately,
+ * changes made by other processes (e.g. a push) are detected by periodically reading the HEAD ref,
+ * which only costs a file status check while the ref is unchanged.
+ */
+public class GitHeadWatcher {
+
+  private static final Map<String,GitHeadWatcher> watchers = new ConcurrentHashMap<String,GitHeadWatcher>();
+
+  /**
+   * Incremented on each change signaled by a writer, so a change signaled between the read of
+   * HEAD and the wait is not missed
+   */
+  private long version = 0L;
+
+  private GitHeadWatcher() {
+  }
+
+  public static GitHeadWatcher get(String repo) {
+    GitHeadWatcher watcher = watchers.get(repo);
+
+    if (null == watcher) {
+      watchers.putIfAbsent(repo, new GitHeadWatcher());
+      watcher = watchers.get(repo);
+    }
+
+    return watcher;
+  }
+
+  /**
+   * Wake up the callers waiting on the repository
+   */
+  public synchronized void changed() {
+    this.version++;
+    this.notifyAll();
+  }
+
+  /**
+   * Wait until HEAD no longer points to 'current'.
+   *
+   * @param repo Repository to watch
+   * @param current Commit HEAD is expected to point to, null for an unborn HEAD
+   * @param timeout Maximum time to wait, in ms
+   * @param poll Interval between two reads of the HEAD ref, in ms, in-memory repositories are not polled
+   * @return The commit HEAD points to, which is 'current' if the timeout expired
+   */
+  public ObjectId await(String repo, ObjectId current, long timeout, long poll) throws IOException, InterruptedException {
+    long deadline = System.currentTimeMillis() + timeout;
+
+    // In-memory repositories are only modified by the writers of the extension, so their HEAD is only
+    // read when a writer signaled a change. Polling them would keep them from being discarded once unused.
+    boolean polled = !GitWarpScriptExtension.getMemoryRepositories().isInMemory(repo);
+    long read = -1L;
+    ObjectId head = current;
+
+    while (true) {
+      long version;
+
+      synchronized(this) {
+        version = this.version;
+      }
+
+      if (polled || version != read) {
+        head = head(repo, current);
+        read = version;
+      }
+
+      if (null == head ? null != current : !head.equals(current)) {
+        return head;
+      }
+
+      long remaining = deadline - System.currentTimeMillis();
+
+      if (remaining <= 0) {
+        return head;
+      }
+
+      synchronized(this) {
+        if (version == this.version) {
+          this.wait(Math.max(1L, polled ? Math.min(remaining, poll) : remaining));
+        }
+      }
+    }
+  }
+
+  private static ObjectId head(String repo, ObjectId current) throws IOException {
+    // An in-memory repository discarded because it was unused must not be recreated, its HEAD
+    // cannot move until a writer loads it again, which signals the watcher
+    if (GitWarpScriptExtension.getMemoryRepositories().isInMemory(repo) && !GitWarpScriptExtension.getMemoryRepositories().isLoaded(repo)) {
+      return current;
+    }
+
+    // The handle is not kept while waiting so the repository can be closed or reopened meanwhile
+    try (GitRepositoryCache.Handle handle = GitWarpScriptExtension.acquire(repo)) {
+      Ref ref = handle.getRepository().exactRef(Constants.HEAD);
+      return null == ref ? null : ref.getObjectId();
+    }
+  }
+}
@@ -0,0 +1,126 @@
+//
+//   Copyright 2021  SenX S.A.S.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.ext.git;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * LRU cache bounded by the total weight of its values.
+ *
+ * Only immutable data should be stored in such a cache, typically content addressed by
+ * a git object id, so entries never need to be invalidated.
+ */
+public class GitLRUCache<K,V> {
+
+  private final String name;
+  private final long maxweight;
+  private final long maxentryweight;
+
+  private final LinkedHashMap<K,V> entries = new LinkedHashMap<K,V>(16, 0.75F, true);
+  private long weight = 0L;
+
+  private final AtomicLong hits = new AtomicLong(0L);
+  private final AtomicLong misses = new AtomicLong(0L);
+
+  /**
+   * @param name Name of the cache, used when reporting statistics
+   * @param maxweight Maximum total weight of the cached values, 0 disables the cache
+   * @param maxentryweight Values heavier than this will not be cached
+   */
+  public GitLRUCache(String name, long maxweight, long maxentryweight) {
+    this.name = name;
+    this.maxweight = maxweight;
+    this.maxentryweight = Math.min(maxweight, maxentryweight);
+  }
+
+  /**
+   * Weight of a value, defaults to 1 so the cache is bounded by its number of entries
+   */
+  protected long weigh(V value) {
+    return 1L;
+  }
+
+  public V get(K key) {
+    V value;
+
+    synchronized(this) {
+      value = this.entries.get(key);
+    }
+
+    if (null == value) {
+      this.misses.incrementAndGet();
+    } else {
+      this.hits.incrementAndGet();
+    }
+
+    GitMetrics.cache(this.name, null != value);
+
+    return value;
+  }
+
+  public void put(K key, V value) {
+    long w = weigh(value);
+
+    if (w > this.maxentryweight) {
+      return;
+    }
+
+    synchronized(this) {
+      V previous = this.entries.put(key, value);
+
+      if (null != previous) {
+        this.weight -= weigh(previous);
+      }
+
+      this.weight += w;
+
+      Iterator<V> iter = this.entries.values().iterator();
+
+      while (this.weight > this.maxweight && iter.hasNext()) {
+        this.weight -= weigh(iter.next());
+        iter.remove();
+      }
+    }
+  }
+
+  public String getName() {
+    return this.name;
+  }
+
+  public long getHits() {
+    return this.hits.get();
+  }
+
+  public long getMisses() {
+    return this.misses.get();
+  }
+
+  /**
+   * Add the statistics of this cache to a map, keys are prefixed with the name of the cache
+   */
+  public void stats(Map<Object,Object> stats) {
+    synchronized(this) {
+      stats.put(this.name + ".entries", (long) this.entries.size());
+      stats.put(this.name + ".weight", this.weight);
+    }
+    stats.put(this.name + ".hits", this.hits.get());
+    stats.put(this.name + ".misses", this.misses.get());
+  }
+}
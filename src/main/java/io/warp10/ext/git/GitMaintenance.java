@@ -0,0 +1,179 @@
+//
+//   Copyright 2021  SenX S.A.S.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.ext.git;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import io.warp10.continuum.store.Constants;
+
+/**
+ * Background maintenance of the repositories written by the extension.
+ *
+ * Each commit created by the write queue leaves loose objects behind. Once a repository has
+ * received a configured number of commits, it is garbage collected (loose objects packed, with
+ * a pack bitmap) by a background thread while its write queue is held, so no write is in
+ * flight during the collection.
+ */
+public class GitMaintenance {
+
+  /**
+   * Maintenance status of a repository
+   */
+  private static class Status {
+    private final AtomicLong writes = new AtomicLong(0L);
+    private long runs = 0L;
+    private long last = 0L;
+    private long duration = 0L;
+    private boolean running = false;
+    private boolean failed = false;
+  }
+
+  private static final Map<String,Status> statuses = new ConcurrentHashMap<String,Status>();
+
+  private final long threshold;
+
+  public GitMaintenance(long threshold, long interval) {
+    this.threshold = threshold;
+
+    if (threshold <= 0) {
+      return;
+    }
+
+    ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread t = new Thread(r);
+        t.setName("[GitMaintenance]");
+        t.setDaemon(true);
+        return t;
+      }
+    });
+
+    executor.scheduleWithFixedDelay(new Runnable() {
+      @Override
+      public void run() {
+        maintain();
+      }
+    }, interval, interval, TimeUnit.MILLISECONDS);
+  }
+
+  private static Status status(String repo) {
+    Status status = statuses.get(repo);
+
+    if (null == status) {
+      statuses.putIfAbsent(repo, new Status());
+      status = statuses.get(repo);
+    }
+
+    return status;
+  }
+
+  /**
+   * Record commits created in a repository
+   */
+  public static void written(String repo, long commits) {
+    if (commits > 0) {
+      status(repo).writes.addAndGet(commits);
+    }
+  }
+
+  /**
+   * Collect the repositories which crossed the threshold, one at a time
+   */
+  private void maintain() {
+    List<String> repos = new ArrayList<String>();
+
+    for (Map.Entry<String,Status> entry: statuses.entrySet()) {
+      if (entry.getValue().writes.get() >= this.threshold) {
+        repos.add(entry.getKey());
+      }
+    }
+
+    for (String repo: repos) {
+      try {
+        gc(repo);
+      } catch (Throwable t) {
+        // Keep the scheduler alive, the failure is reported in the status
+      }
+    }
+  }
+
+  private static void gc(final String repo) throws Exception {
+    final Status status = status(repo);
+
+    final GitRepositoryCache.Handle handle = GitWarpScriptExtension.acquire(repo);
+
+    try {
+      GitWriteQueue.get(repo).exclusive(new Runnable() {
+        @Override
+        public void run() {
+          long start = System.currentTimeMillis();
+
+          synchronized(status) {
+            status.running = true;
+          }
+
+          // Writes recorded from now on will be covered by the next run
+          status.writes.set(0L);
+          boolean failed = false;
+
+          try {
+            handle.getGit().gc().call();
+          } catch (Throwable t) {
+            // Do not retry before the threshold is crossed again
+            failed = true;
+          }
+
+          synchronized(status) {
+            status.running = false;
+            status.failed = failed;
+            status.runs++;
+            status.last = start;
+            status.duration = System.currentTimeMillis() - start;
+          }
+        }
+      });
+    } finally {
+      handle.close();
+    }
+  }
+
+  /**
+   * Add the maintenance status of a repository to a map
+   */
+  public static void stats(String repo, Map<Object,Object> stats) {
+    Status status = status(repo);
+
+    stats.put("maintenance.writes", status.writes.get());
+
+    synchronized(status) {
+      stats.put("maintenance.runs", status.runs);
+      stats.put("maintenance.running", status.running);
+      stats.put("maintenance.failed", status.failed);
+      stats.put("maintenance.last", 0L == status.last ? null : status.last * Constants.TIME_UNITS_PER_MS);
+      stats.put("maintenance.duration", status.duration * Constants.TIME_UNITS_PER_MS);
+    }
+  }
+}
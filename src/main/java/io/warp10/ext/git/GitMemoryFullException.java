@@ -0,0 +1,30 @@
+//
+//   Copyright 2021  SenX S.A.S.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+package io.warp10.ext.git;
+
+import java.io.IOException;
+
+/**
+ * Thrown when a write to an in-memory repository would exceed the configured memory budget.
+ */
+public class GitMemoryFullException extends IOException {
+
+  private static final long serialVersionUID = 1L;
+
+  public GitMemoryFullException() {
+    super("Memory budget of in-memory repositories is exhausted.");
+  }
+}
@@ -0,0 +1,483 @@
+//
+//   Copyright 2021  SenX S.A.S.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+package io.warp10.ext.git;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.jgit.internal.storage.dfs.DfsGarbageCollector;
+import org.eclipse.jgit.internal.storage.dfs.DfsObjDatabase;
+import org.eclipse.jgit.internal.storage.dfs.DfsObjDatabase.PackSource;
+import org.eclipse.jgit.internal.storage.dfs.DfsPackCompactor;
+import org.eclipse.jgit.internal.storage.dfs.DfsPackDescription;
+import org.eclipse.jgit.internal.storage.dfs.DfsPackFile;
+import org.eclipse.jgit.internal.storage.dfs.DfsReftable;
+import org.eclipse.jgit.internal.storage.dfs.DfsRepositoryDescription;
+import org.eclipse.jgit.internal.storage.dfs.InMemoryRepository;
+import org.eclipse.jgit.internal.storage.pack.PackExt;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.NullProgressMonitor;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.transport.BundleWriter;
+import org.eclipse.jgit.transport.RefSpec;
+import org.eclipse.jgit.transport.Transport;
+import org.eclipse.jgit.transport.TransportBundleStream;
+import org.eclipse.jgit.transport.URIish;
+
+/**
+ * Repositories held in memory instead of under the root directory, for scratch or short lived data.
+ *
+ * A repository is held in memory when its name starts with the configured prefix. It is created
+ * empty on first access, or restored from its last snapshot if snapshots are enabled. The total size
+ * of the objects and refs of those repositories is bounded, a write which would exceed the budget first
+ * garbage collects the repository it targets, and fails if that did not free enough memory.
+ *
+ * Each write to an in-memory repository adds a small pack, those packs are compacted once they are
+ * too numerous. If a snapshot directory is configured, repositories modified since their last snapshot
+ * are periodically written there as bundles, and when the JVM exits.
+ */
+public class GitMemoryRepositories {
+
+  /**
+   * Number of packs above which the packs of a repository are compacted
+   */
+  private static final int MAX_PACKS = 16;
+
+  private static final String SNAPSHOT_SUFFIX = ".bundle";
+
+  private static class Memory {
+    private final InMemoryRepository repository;
+    /**
+     * Refs of the last snapshot of the repository
+     */
+    private List<Ref> snapshot = Collections.emptyList();
+    /**
+     * Size of the repository after its last garbage collection, -1 if it was never collected
+     */
+    private long collected = -1L;
+
+    private Memory(InMemoryRepository repository) {
+      this.repository = repository;
+    }
+  }
+
+  private final String prefix;
+  private final long maxsize;
+  private final File snapshots;
+
+  private final Map<String,Memory> repositories = new ConcurrentHashMap<String,Memory>();
+
+  /**
+   * Repositories detached from 'repositories' and waiting to be snapshotted before being discarded
+   */
+  private final Map<String,Memory> detached = new ConcurrentHashMap<String,Memory>();
+
+  public GitMemoryRepositories(String prefix, long maxsize, File snapshots, long interval) {
+    this.prefix = prefix;
+    this.maxsize = maxsize;
+    this.snapshots = snapshots;
+
+    if (null == prefix || null == snapshots) {
+      return;
+    }
+
+    if (!snapshots.isDirectory()) {
+      throw new RuntimeException("Configured in-memory repositories snapshot directory (" + snapshots + ") does not exist.");
+    }
+
+    if (interval > 0) {
+      ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+          Thread t = new Thread(r);
+          t.setName("[GitMemoryRepositories Snapshot]");
+          t.setDaemon(true);
+          return t;
+        }
+      });
+
+      executor.scheduleWithFixedDelay(new Runnable() {
+        @Override
+        public void run() {
+          snapshot();
+        }
+      }, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    Runtime.getRuntime().addShutdownHook(new Thread() {
+      @Override
+      public void run() {
+        snapshot();
+      }
+    });
+  }
+
+  /**
+   * Check whether a repository is held in memory
+   */
+  public boolean isInMemory(String name) {
+    return null != this.prefix && name.startsWith(this.prefix);
+  }
+
+  /**
+   * Check whether the in-memory repository 'name' is currently loaded, i.e. neither discarded nor
+   * being discarded
+   */
+  public synchronized boolean isLoaded(String name) {
+    return this.repositories.containsKey(name);
+  }
+
+  /**
+   * Return the in-memory repository 'name' if it is loaded, null otherwise
+   */
+  public synchronized Repository get(String name) {
+    Memory memory = this.repositories.get(name);
+    return null == memory ? null : memory.repository;
+  }
+
+  /**
+   * Return the in-memory repository 'name', creating or restoring it if needed. The snapshot is
+   * restored outside of the lock, if several callers restore it concurrently the first one wins.
+   */
+  public Repository open(String name) throws IOException {
+    synchronized(this) {
+      Memory memory = this.repositories.get(name);
+
+      // A repository being discarded is kept if it is opened again
+      if (null == memory && null != this.detached.get(name)) {
+        memory = this.detached.get(name);
+        this.repositories.put(name, memory);
+      }
+
+      if (null != memory) {
+        return memory.repository;
+      }
+    }
+
+    InMemoryRepository repository = new InMemoryRepository(new DfsRepositoryDescription(name));
+    repository.create(true);
+
+    Memory memory = new Memory(repository);
+
+    if (null != this.snapshots) {
+      File bundle = new File(this.snapshots, filename(name));
+
+      if (bundle.exists()) {
+        try (InputStream in = new FileInputStream(bundle); Transport transport = new TransportBundleStream(repository, new URIish(bundle.toURI().toURL()), in)) {
+          transport.fetch(NullProgressMonitor.INSTANCE, Collections.singletonList(new RefSpec("+" + Constants.R_REFS + "*:" + Constants.R_REFS + "*")));
+        }
+        memory.snapshot = refs(repository);
+      }
+    }
+
+    synchronized(this) {
+      Memory other = this.repositories.get(name);
+
+      if (null == other && null != this.detached.get(name)) {
+        other = this.detached.get(name);
+        this.repositories.put(name, other);
+      }
+
+      if (null != other) {
+        return other.repository;
+      }
+
+      this.repositories.put(name, memory);
+    }
+
+    return repository;
+  }
+
+  /**
+   * Detach an in-memory repository so it is discarded by {@link #drop(String)}, unless it is opened
+   * again meanwhile. This does not perform any I/O so it can be called while holding other locks.
+   */
+  public synchronized void detach(String name) {
+    Memory memory = this.repositories.remove(name);
+
+    if (null != memory) {
+      this.detached.put(name, memory);
+    }
+  }
+
+  /**
+   * Discard a detached in-memory repository, after having snapshotted it
+   */
+  public void drop(String name) {
+    Memory memory = this.detached.get(name);
+
+    if (null == memory) {
+      return;
+    }
+
+    snapshot(name, memory);
+
+    synchronized(this) {
+      this.detached.remove(name, memory);
+    }
+  }
+
+  /**
+   * Check that 'bytes' can be written to an in-memory repository without exceeding the memory budget.
+   * If it cannot, the repository is garbage collected first to free the objects which are no longer
+   * reachable, e.g. replaced tags.
+   *
+   * @param bytes Estimated size of the objects to write, i.e. their uncompressed content
+   */
+  public void check(String name, Repository repository, long bytes) throws IOException {
+    if (!(repository instanceof InMemoryRepository) || this.maxsize <= 0) {
+      return;
+    }
+
+    if (size() + bytes <= this.maxsize) {
+      return;
+    }
+
+    Memory memory = this.repositories.get(name);
+
+    if (null != memory && memory.repository == repository) {
+      collect(name, memory);
+    }
+
+    if (size() + bytes > this.maxsize) {
+      throw new GitMemoryFullException();
+    }
+  }
+
+  /**
+   * Garbage collect an in-memory repository, unless it was not modified since it was last collected.
+   * The collection runs while no write is in progress on the repository.
+   */
+  private static void collect(String name, final Memory memory) throws IOException {
+    synchronized(memory) {
+      if (memory.collected == size(memory.repository)) {
+        return;
+      }
+    }
+
+    try {
+      GitWriteQueue.get(name).exclusive(new Callable<Void>() {
+        @Override
+        public Void call() throws Exception {
+          synchronized(memory) {
+            //
+            // Unreachable objects are moved to a garbage pack, which is then marked as expired so
+            // a second pass discards it. A TTL of 0 would disable the expiry of garbage packs.
+            //
+
+            DfsGarbageCollector gc = new DfsGarbageCollector(memory.repository);
+            gc.setGarbageTtl(1L, TimeUnit.DAYS);
+            gc.pack(NullProgressMonitor.INSTANCE);
+
+            for (DfsPackFile pack: memory.repository.getObjectDatabase().getPacks()) {
+              if (PackSource.UNREACHABLE_GARBAGE == pack.getPackDescription().getPackSource()) {
+                pack.getPackDescription().setLastModified(0L);
+              }
+            }
+
+            gc = new DfsGarbageCollector(memory.repository);
+            gc.setGarbageTtl(1L, TimeUnit.DAYS);
+            gc.pack(NullProgressMonitor.INSTANCE);
+
+            memory.collected = size(memory.repository);
+          }
+          return null;
+        }
+      });
+    } catch (IOException ioe) {
+      throw ioe;
+    } catch (Exception e) {
+      throw new IOException("Unable to collect in-memory repository.", e);
+    }
+  }
+
+  /**
+   * Compact the packs of an in-memory repository once it was written to too many times
+   */
+  public void written(Repository repository) throws IOException {
+    if (!(repository instanceof InMemoryRepository)) {
+      return;
+    }
+
+    InMemoryRepository memrepo = (InMemoryRepository) repository;
+
+    if (memrepo.getObjectDatabase().getPacks().length + memrepo.getObjectDatabase().getReftables().length > MAX_PACKS) {
+      new DfsPackCompactor(memrepo).autoAdd().compact(NullProgressMonitor.INSTANCE);
+    }
+  }
+
+  /**
+   * Total size in bytes of the in-memory repositories
+   */
+  public long size() throws IOException {
+    long size = 0L;
+
+    for (Memory memory: this.repositories.values()) {
+      size += size(memory.repository);
+    }
+
+    return size;
+  }
+
+  private static long size(InMemoryRepository repository) throws IOException {
+    long size = 0L;
+
+    DfsObjDatabase odb = repository.getObjectDatabase();
+
+    for (DfsPackFile pack: odb.getPacks()) {
+      size += size(pack.getPackDescription());
+    }
+
+    for (DfsReftable reftable: odb.getReftables()) {
+      size += size(reftable.getPackDescription());
+    }
+
+    return size;
+  }
+
+  private static long size(DfsPackDescription desc) {
+    long size = 0L;
+
+    for (PackExt ext: PackExt.values()) {
+      if (desc.hasFileExt(ext)) {
+        size += desc.getFileSize(ext);
+      }
+    }
+
+    return size;
+  }
+
+  /**
+   * Add the size of an in-memory repository to a map
+   */
+  public void stats(String name, Map<Object,Object> stats) throws IOException {
+    Memory memory = this.repositories.get(name);
+
+    if (null == memory) {
+      return;
+    }
+
+    stats.put("memory.size", size(memory.repository));
+    stats.put("memory.total", size());
+    stats.put("memory.maxsize", this.maxsize);
+  }
+
+  /**
+   * Snapshot the repositories modified since their last snapshot
+   */
+  private void snapshot() {
+    for (Map.Entry<String,Memory> entry: this.repositories.entrySet()) {
+      snapshot(entry.getKey(), entry.getValue());
+    }
+
+    for (Map.Entry<String,Memory> entry: this.detached.entrySet()) {
+      snapshot(entry.getKey(), entry.getValue());
+    }
+  }
+
+  private void snapshot(String name, Memory memory) {
+    if (null == this.snapshots) {
+      return;
+    }
+
+    try {
+      synchronized(memory) {
+        List<Ref> refs = refs(memory.repository);
+
+        if (refs.isEmpty() || sameRefs(refs, memory.snapshot)) {
+          return;
+        }
+
+        BundleWriter writer = new BundleWriter(memory.repository);
+
+        for (Ref ref: refs) {
+          writer.include(ref);
+        }
+
+        //
+        // Write the bundle in a temporary file first so a valid snapshot is always available
+        //
+
+        File bundle = new File(this.snapshots, filename(name));
+        File tmp = new File(this.snapshots, filename(name) + ".tmp");
+
+        try (OutputStream out = new FileOutputStream(tmp)) {
+          writer.writeBundle(NullProgressMonitor.INSTANCE, out);
+        }
+
+        Files.move(tmp.toPath(), bundle.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        memory.snapshot = refs;
+      }
+    } catch (Throwable t) {
+      // The repository will be snapshotted on the next run
+    }
+  }
+
+  private static List<Ref> refs(Repository repository) throws IOException {
+    List<Ref> refs = new ArrayList<Ref>();
+
+    for (Ref ref: repository.getRefDatabase().getRefsByPrefix(Constants.R_REFS)) {
+      if (null != ref.getObjectId()) {
+        refs.add(ref);
+      }
+    }
+
+    return refs;
+  }
+
+  private static boolean sameRefs(List<Ref> refs, List<Ref> others) {
+    if (refs.size() != others.size()) {
+      return false;
+    }
+
+    for (int i = 0; i < refs.size(); i++) {
+      if (!refs.get(i).getName().equals(others.get(i).getName()) || !refs.get(i).getObjectId().equals(others.get(i).getObjectId())) {
+        return false;
+      }
+    }
+
+    return true;
+  }
+
+  private static String filename(String name) {
+    try {
+      return URLEncoder.encode(name, StandardCharsets.UTF_8.name()) + SNAPSHOT_SUFFIX;
+    } catch (UnsupportedEncodingException uee) {
+      throw new RuntimeException(uee);
+    }
+  }
+}
@@ -0,0 +1,258 @@
+//
+//   Copyright 2021  SenX S.A.S.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+package io.warp10.ext.git;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import io.warp10.script.NamedWarpScriptFunction;
+import io.warp10.script.WarpScriptException;
+import io.warp10.script.WarpScriptStack;
+import io.warp10.script.WarpScriptStackFunction;
+import io.warp10.sensision.Sensision;
+
+/**
+ * Sensision metrics of the functions of the extension.
+ *
+ * Each call of an instrumented function is tracked in a thread local context, the code doing
+ * the actual work adds the bytes, entries and commits it processed to the current context, which
+ * is published when the call ends. Metrics are labeled with the name of the function and, once
+ * the capabilities were checked, with the name of the repository. Paths never appear in labels.
+ */
+public class GitMetrics {
+
+  public static final String CLASS_CALLS = "warp.ext.git.calls";
+  public static final String CLASS_TIME = "warp.ext.git.time.us";
+  public static final String CLASS_LATENCY = "warp.ext.git.latency";
+  public static final String CLASS_FAILURES = "warp.ext.git.failures";
+  public static final String CLASS_ERRORS = "warp.ext.git.errors";
+  public static final String CLASS_BYTES_READ = "warp.ext.git.bytes.read";
+  public static final String CLASS_BYTES_WRITTEN = "warp.ext.git.bytes.written";
+  public static final String CLASS_ENTRIES = "warp.ext.git.entries";
+  public static final String CLASS_COMMITS = "warp.ext.git.commits";
+  public static final String CLASS_WRITE_WAIT = "warp.ext.git.write.wait.us";
+  public static final String CLASS_WRITE_RETRIES = "warp.ext.git.write.retries";
+  public static final String CLASS_CACHE_HITS = "warp.ext.git.cache.hits";
+  public static final String CLASS_CACHE_MISSES = "warp.ext.git.cache.misses";
+  public static final String CLASS_REPOSITORY_OPENS = "warp.ext.git.repository.opens";
+
+  public static final String LABEL_FUNCTION = "function";
+  public static final String LABEL_REPO = "repo";
+  public static final String LABEL_LE = "le";
+  public static final String LABEL_REASON = "reason";
+  public static final String LABEL_CACHE = "cache";
+
+  /**
+   * Upper bounds (in ms) of the latency buckets, slower calls fall in the '+Inf' bucket
+   */
+  private static final long[] BUCKETS = { 1L, 10L, 100L, 1000L, 10000L };
+
+  private static final class Call {
+    private final String function;
+    private String repo = null;
+    private String reason = null;
+    private long read = 0L;
+    private long written = 0L;
+    private long entries = 0L;
+    private long commits = 0L;
+    private long wait = 0L;
+    private long retries = 0L;
+
+    private Call(String function) {
+      this.function = function;
+    }
+  }
+
+  private static final ThreadLocal<Call> CALL = new ThreadLocal<Call>();
+
+  /**
+   * Function publishing the metrics of the calls of another function
+   */
+  private static final class Instrumented extends NamedWarpScriptFunction implements WarpScriptStackFunction {
+    private final WarpScriptStackFunction function;
+
+    private Instrumented(NamedWarpScriptFunction function) {
+      super(function.getName());
+      this.function = (WarpScriptStackFunction) function;
+    }
+
+    @Override
+    public Object apply(WarpScriptStack stack) throws WarpScriptException {
+      Call call = new Call(getName());
+      Call outer = CALL.get();
+      CALL.set(call);
+
+      long nanos = System.nanoTime();
+      boolean failed = true;
+
+      try {
+        Object result = this.function.apply(stack);
+        failed = false;
+        return result;
+      } finally {
+        if (null == outer) {
+          CALL.remove();
+        } else {
+          CALL.set(outer);
+        }
+        publish(call, System.nanoTime() - nanos, failed);
+      }
+    }
+  }
+
+  /**
+   * Wrap a function so its calls are measured
+   */
+  public static NamedWarpScriptFunction instrument(NamedWarpScriptFunction function) {
+    return new Instrumented(function);
+  }
+
+  /**
+   * Set the repository of the current call, once the caller was checked for access to it
+   */
+  public static void repo(String repo) {
+    Call call = CALL.get();
+    if (null != call) {
+      call.repo = repo;
+    }
+  }
+
+  /**
+   * Record the reason why the current call failed to access its repository
+   */
+  public static void error(String reason) {
+    Call call = CALL.get();
+    if (null != call) {
+      call.reason = reason;
+    }
+  }
+
+  /**
+   * Add content returned by the current call to the bytes it read
+   *
+   * @return The content itself
+   */
+  public static byte[] read(byte[] content) {
+    Call call = CALL.get();
+    if (null != call) {
+      call.read += content.length;
+    }
+    return content;
+  }
+
+  public static void written(long bytes) {
+    Call call = CALL.get();
+    if (null != call) {
+      call.written += bytes;
+    }
+  }
+
+  public static void entries(long entries) {
+    Call call = CALL.get();
+    if (null != call) {
+      call.entries += entries;
+    }
+  }
+
+  public static void commits(long commits) {
+    Call call = CALL.get();
+    if (null != call) {
+      call.commits += commits;
+    }
+  }
+
+  /**
+   * Add time (in ns) spent waiting for other writers to the current call
+   */
+  public static void waited(long nanos) {
+    Call call = CALL.get();
+    if (null != call) {
+      call.wait += nanos;
+    }
+  }
+
+  /**
+   * Record that the current call had to retry updating a ref which was locked
+   */
+  public static void retried() {
+    Call call = CALL.get();
+    if (null != call) {
+      call.retries++;
+    }
+  }
+
+  public static void cache(String name, boolean hit) {
+    Map<String,String> labels = new HashMap<String,String>();
+    labels.put(LABEL_CACHE, name);
+    Sensision.update(hit ? CLASS_CACHE_HITS : CLASS_CACHE_MISSES, labels, 1);
+  }
+
+  public static void opened(String repo) {
+    Map<String,String> labels = new HashMap<String,String>();
+    labels.put(LABEL_REPO, repo);
+    Sensision.update(CLASS_REPOSITORY_OPENS, labels, 1);
+  }
+
+  private static void publish(Call call, long nanos, boolean failed) {
+    Map<String,String> labels = new HashMap<String,String>();
+    labels.put(LABEL_FUNCTION, call.function);
+    if (null != call.repo) {
+      labels.put(LABEL_REPO, call.repo);
+    }
+
+    Sensision.update(CLASS_CALLS, labels, 1);
+    Sensision.update(CLASS_TIME, labels, nanos / 1000L);
+
+    Map<String,String> bucket = new HashMap<String,String>(labels);
+    bucket.put(LABEL_LE, "+Inf");
+    for (long le: BUCKETS) {
+      if (nanos <= le * 1000000L) {
+        bucket.put(LABEL_LE, Long.toString(le));
+        break;
+      }
+    }
+    Sensision.update(CLASS_LATENCY, bucket, 1);
+
+    if (failed) {
+      Sensision.update(CLASS_FAILURES, labels, 1);
+    }
+
+    if (null != call.reason) {
+      Map<String,String> reason = new HashMap<String,String>(labels);
+      reason.put(LABEL_REASON, call.reason);
+      Sensision.update(CLASS_ERRORS, reason, 1);
+    }
+
+    if (call.read > 0) {
+      Sensision.update(CLASS_BYTES_READ, labels, call.read);
+    }
+    if (call.written > 0) {
+      Sensision.update(CLASS_BYTES_WRITTEN, labels, call.written);
+    }
+    if (call.entries > 0) {
+      Sensision.update(CLASS_ENTRIES, labels, call.entries);
+    }
+    if (call.commits > 0) {
+      Sensision.update(CLASS_COMMITS, labels, call.commits);
+    }
+    if (call.wait > 0) {
+      Sensision.update(CLASS_WRITE_WAIT, labels, call.wait / 1000L);
+    }
+    if (call.retries > 0) {
+      Sensision.update(CLASS_WRITE_RETRIES, labels, call.retries);
+    }
+  }
+}
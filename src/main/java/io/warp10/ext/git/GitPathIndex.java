@@ -0,0 +1,470 @@
+//
+//   Copyright 2021  SenX S.A.S.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.ext.git;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevSort;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.treewalk.EmptyTreeIterator;
+import org.eclipse.jgit.treewalk.TreeWalk;
+import org.eclipse.jgit.treewalk.filter.TreeFilter;
+
+/**
+ * Per repository index of the commits modifying each path, persisted in the git directory.
+ *
+ * The index file is an append-only log of the commits reachable from HEAD, in topological
+ * order, each with the paths it modifies compared to each of its parents. It is loaded in
+ * memory on first use and caught up from the last indexed commit when HEAD has moved, only
+ * the commits added since are diffed. If HEAD no longer descends from the last indexed commit
+ * the index is rebuilt.
+ *
+ * A commit modifies a path if the path differs from every one of its parents, as for a
+ * RevWalk filtered with TreeFilter.ANY_DIFF. At merges such a walk also simplifies the history,
+ * it only follows a parent the merge does not differ from, so the index only answers queries
+ * whose walk would not reach a merge and the callers walk the history otherwise.
+ *
+ * The index of a repository is discarded from memory when the repository is closed by the cache.
+ */
+public class GitPathIndex {
+
+  private static final Map<String,GitPathIndex> indexes = new ConcurrentHashMap<String,GitPathIndex>();
+
+  /**
+   * Name of the directory, in the git directory, where the extension stores its data
+   */
+  public static final String DIRECTORY = "warp10-ext-git";
+
+  private static final String FILE = "paths.idx";
+
+  private static final byte[] MAGIC = "W10GITP1".getBytes(StandardCharsets.UTF_8);
+
+  /**
+   * Commits with more parents are considered as modifying a path if it differs from any of the first 63 parents
+   */
+  private static final int MAX_PARENTS = 63;
+
+  /**
+   * Commits touching a path, as pairs of commit sequence number and mask of the parents the path differs from
+   */
+  private static class Postings {
+    private long[] data = new long[4];
+    private int size = 0;
+
+    private void add(int seq, long mask) {
+      if (this.size + 2 > this.data.length) {
+        this.data = Arrays.copyOf(this.data, this.data.length * 2);
+      }
+      this.data[this.size++] = seq;
+      this.data[this.size++] = mask;
+    }
+  }
+
+  private File file = null;
+
+  private boolean loaded = false;
+
+  /**
+   * Indexed commits, by sequence number
+   */
+  private final List<ObjectId> commits = new ArrayList<ObjectId>();
+  private int[] times = new int[1024];
+  private long[] masks = new long[1024];
+
+  private final TreeMap<String,Postings> paths = new TreeMap<String,Postings>();
+
+  /**
+   * Last indexed commit, i.e. HEAD when the index was last updated
+   */
+  private ObjectId tip = null;
+
+  /**
+   * Sequence number of the most recent merge commit, -1 if none was indexed
+   */
+  private int merge = -1;
+
+  private GitPathIndex() {
+  }
+
+  public static GitPathIndex get(String repo) {
+    GitPathIndex index = indexes.get(repo);
+
+    if (null == index) {
+      indexes.putIfAbsent(repo, new GitPathIndex());
+      index = indexes.get(repo);
+    }
+
+    return index;
+  }
+
+  /**
+   * Discard the index of a repository, it is reloaded from its file on next use. Must only be called while the
+   * repository is not in use.
+   */
+  public static void forget(String repo) {
+    indexes.remove(repo);
+  }
+
+  /**
+   * Return the commits reachable from HEAD which modify some of the paths (or files below them),
+   * after having caught up with HEAD. The commits and their order are those of a RevWalk from HEAD
+   * filtered on the paths and commit times, which stops at the first commit older than 'since'.
+   *
+   * @param since Only return commits at or after this time in ms, or null
+   * @param until Only return commits at or before this time in ms, or null
+   * @return The ids of the commits or null if the repository cannot be indexed or the walk would
+   *         reach a merge
+   */
+  public synchronized List<ObjectId> log(Repository repository, Collection<String> pathes, Long since, Long until) throws IOException {
+    if (!update(repository)) {
+      return null;
+    }
+
+    int from = null == since ? Integer.MIN_VALUE : (int) (since / 1000L);
+    int to = null == until ? Integer.MAX_VALUE : (int) (until / 1000L);
+
+    //
+    // The commits indexed after the most recent merge form a single chain from HEAD, in the reverse
+    // order of the index. The walk stops at the first commit older than 'since', if that is not
+    // the merge or a commit before it, the history would be simplified at the merge.
+    //
+
+    int low = 0;
+
+    if (null != since) {
+      for (int seq = this.commits.size() - 1; seq >= 0 && seq >= this.merge; seq--) {
+        if (this.times[seq] < from) {
+          low = seq + 1;
+          break;
+        }
+      }
+    }
+
+    if (this.merge >= low) {
+      return null;
+    }
+
+    //
+    // Gather the parent masks of the commits modifying the paths, a path which is a directory
+    // matches all the paths below it
+    //
+
+    Map<Integer,Long> matches = new HashMap<Integer,Long>();
+
+    for (String path: pathes) {
+      List<Postings> postings = new ArrayList<Postings>();
+
+      if (this.paths.containsKey(path)) {
+        postings.add(this.paths.get(path));
+      }
+
+      // '0' is the character following '/'
+      postings.addAll(this.paths.subMap(path + "/", path + "0").values());
+
+      for (Postings p: postings) {
+        for (int i = 0; i < p.size; i += 2) {
+          int seq = (int) p.data[i];
+          Long mask = matches.get(seq);
+          matches.put(seq, null == mask ? p.data[i + 1] : mask | p.data[i + 1]);
+        }
+      }
+    }
+
+    List<Integer> seqs = new ArrayList<Integer>();
+
+    for (Map.Entry<Integer,Long> match: matches.entrySet()) {
+      int seq = match.getKey();
+      if (match.getValue() == this.masks[seq] && seq >= low && this.times[seq] <= to) {
+        seqs.add(seq);
+      }
+    }
+
+    // Children before parents, as walked from HEAD
+    Collections.sort(seqs, Collections.reverseOrder());
+
+    List<ObjectId> ids = new ArrayList<ObjectId>(seqs.size());
+
+    for (int seq: seqs) {
+      ids.add(this.commits.get(seq));
+    }
+
+    return ids;
+  }
+
+  /**
+   * Catch up with HEAD if the index was already loaded, so writes keep it up to date without
+   * creating it for repositories which do not use it.
+   */
+  public synchronized void refresh(Repository repository) throws IOException {
+    if (this.loaded) {
+      update(repository);
+    }
+  }
+
+  /**
+   * Load the index if needed and index the commits added since the last update.
+   *
+   * @return false if the repository cannot be indexed
+   */
+  private boolean update(Repository repository) throws IOException {
+    if (null == repository.getDirectory()) {
+      return false;
+    }
+
+    if (!this.loaded) {
+      File dir = new File(repository.getDirectory(), DIRECTORY);
+      if (!dir.isDirectory() && !dir.mkdirs()) {
+        return false;
+      }
+      this.file = new File(dir, FILE);
+      load();
+      this.loaded = true;
+    }
+
+    ObjectId head = repository.resolve(Constants.HEAD);
+
+    if (null == head || head.equals(this.tip)) {
+      return true;
+    }
+
+    try {
+      catchup(repository, head);
+    } catch (IOException ioe) {
+      // Reload the index from the file on next use, the commits indexed in memory were not persisted
+      this.loaded = false;
+      this.commits.clear();
+      this.paths.clear();
+      this.tip = null;
+      this.merge = -1;
+      throw ioe;
+    }
+
+    return true;
+  }
+
+  private void catchup(Repository repository, ObjectId head) throws IOException {
+    try (RevWalk rwalk = new RevWalk(repository)) {
+      RevCommit start = rwalk.parseCommit(head);
+
+      if (null != this.tip) {
+        RevCommit tip = null;
+        try {
+          tip = rwalk.parseCommit(this.tip);
+        } catch (IOException ioe) {
+          // The last indexed commit is no longer in the repository
+        }
+
+        boolean descends = null != tip && rwalk.isMergedInto(tip, start);
+
+        rwalk.reset();
+
+        if (descends) {
+          rwalk.markUninteresting(tip);
+        } else {
+          // HEAD was rewound, start over
+          reset();
+        }
+      }
+
+      rwalk.markStart(start);
+      rwalk.sort(RevSort.TOPO, true);
+      rwalk.sort(RevSort.REVERSE, true);
+
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      DataOutputStream out = new DataOutputStream(bytes);
+
+      try (TreeWalk twalk = new TreeWalk(rwalk.getObjectReader())) {
+        for (RevCommit commit: rwalk) {
+          Map<String,Long> changes = changes(rwalk, twalk, commit);
+
+          out.write(1);
+          commit.copyRawTo(out);
+          out.writeInt(commit.getCommitTime());
+          out.writeInt(commit.getParentCount());
+          out.writeInt(changes.size());
+          for (Map.Entry<String,Long> change: changes.entrySet()) {
+            out.writeUTF(change.getKey());
+            out.writeLong(change.getValue());
+          }
+
+          add(commit.copy(), commit.getCommitTime(), commit.getParentCount(), changes);
+        }
+      }
+
+      out.flush();
+
+      try (FileOutputStream fos = new FileOutputStream(this.file, true)) {
+        fos.write(bytes.toByteArray());
+      }
+    }
+
+    this.tip = head.copy();
+  }
+
+  /**
+   * Compute the paths a commit modifies and, for each of them, the mask of the parents it differs from
+   */
+  private static Map<String,Long> changes(RevWalk rwalk, TreeWalk twalk, RevCommit commit) throws IOException {
+    int nparents = Math.min(commit.getParentCount(), MAX_PARENTS);
+
+    twalk.reset();
+    twalk.setRecursive(true);
+    twalk.setFilter(TreeFilter.ANY_DIFF);
+    twalk.addTree(commit.getTree());
+
+    if (0 == nparents) {
+      twalk.addTree(new EmptyTreeIterator());
+      nparents = 1;
+    } else {
+      for (int i = 0; i < nparents; i++) {
+        RevCommit parent = commit.getParent(i);
+        rwalk.parseHeaders(parent);
+        twalk.addTree(parent.getTree());
+      }
+    }
+
+    Map<String,Long> changes = new LinkedHashMap<String,Long>();
+
+    while (twalk.next()) {
+      long mask = 0L;
+      for (int i = 0; i < nparents; i++) {
+        if (twalk.getRawMode(0) != twalk.getRawMode(i + 1) || !twalk.idEqual(0, i + 1)) {
+          mask |= 1L << i;
+        }
+      }
+      if (0L != mask) {
+        changes.put(twalk.getPathString(), mask);
+      }
+    }
+
+    return changes;
+  }
+
+  private void add(ObjectId commit, int time, int nparents, Map<String,Long> changes) {
+    int seq = this.commits.size();
+
+    if (seq >= this.times.length) {
+      this.times = Arrays.copyOf(this.times, this.times.length * 2);
+      this.masks = Arrays.copyOf(this.masks, this.masks.length * 2);
+    }
+
+    int n = Math.max(1, Math.min(nparents, MAX_PARENTS));
+
+    this.commits.add(commit);
+    this.times[seq] = time;
+    this.masks[seq] = -1L >>> (64 - n);
+
+    if (nparents > 1) {
+      this.merge = seq;
+    }
+
+    for (Map.Entry<String,Long> change: changes.entrySet()) {
+      Postings postings = this.paths.get(change.getKey());
+      if (null == postings) {
+        postings = new Postings();
+        this.paths.put(change.getKey(), postings);
+      }
+      postings.add(seq, change.getValue());
+    }
+
+    this.tip = commit;
+  }
+
+  private void reset() throws IOException {
+    this.commits.clear();
+    this.paths.clear();
+    this.tip = null;
+    this.merge = -1;
+
+    try (FileOutputStream fos = new FileOutputStream(this.file, false)) {
+      fos.write(MAGIC);
+    }
+  }
+
+  /**
+   * Load the index file, trailing content which cannot be read (e.g. an interrupted append) is discarded
+   */
+  private void load() throws IOException {
+    if (!this.file.exists()) {
+      reset();
+      return;
+    }
+
+    byte[] content = Files.readAllBytes(this.file.toPath());
+
+    if (content.length < MAGIC.length || !Arrays.equals(MAGIC, Arrays.copyOf(content, MAGIC.length))) {
+      reset();
+      return;
+    }
+
+    ByteArrayInputStream bais = new ByteArrayInputStream(content, MAGIC.length, content.length - MAGIC.length);
+    DataInputStream in = new DataInputStream(bais);
+
+    int valid = MAGIC.length;
+
+    byte[] raw = new byte[Constants.OBJECT_ID_LENGTH];
+
+    try {
+      while (1 == in.read()) {
+        in.readFully(raw);
+        int time = in.readInt();
+        int nparents = in.readInt();
+        int nchanges = in.readInt();
+
+        Map<String,Long> changes = new LinkedHashMap<String,Long>();
+
+        for (int i = 0; i < nchanges; i++) {
+          changes.put(in.readUTF(), in.readLong());
+        }
+
+        add(ObjectId.fromRaw(raw), time, nparents, changes);
+        valid = content.length - bais.available();
+      }
+    } catch (IOException ioe) {
+      // Truncated record
+    }
+
+    if (valid < content.length) {
+      try (RandomAccessFile raf = new RandomAccessFile(this.file, "rw")) {
+        raf.setLength(valid);
+      }
+    }
+  }
+}
@@ -0,0 +1,127 @@
+//
+//   Copyright 2021  SenX S.A.S.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.ext.git;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.eclipse.jgit.errors.IncorrectObjectTypeException;
+import org.eclipse.jgit.errors.MissingObjectException;
+import org.eclipse.jgit.treewalk.TreeWalk;
+import org.eclipse.jgit.treewalk.filter.TreeFilter;
+
+/**
+ * Tree filter selecting a set of paths (files or directories) and everything below them.
+ *
+ * The paths are stored in a trie of path elements, so matching an entry costs a lookup
+ * per element of its path, whatever the number of paths in the set.
+ */
+public class GitPathTreeFilter extends TreeFilter {
+
+  private static class Node {
+    private Map<String,Node> children = null;
+    /**
+     * Set when the path leading to this node is part of the set
+     */
+    private boolean terminal = false;
+  }
+
+  private final Node root = new Node();
+
+  private final int size;
+
+  public GitPathTreeFilter(Collection<String> paths) {
+    for (String path: paths) {
+      Node node = this.root;
+      for (String elt: path.split("/")) {
+        if (elt.isEmpty()) {
+          continue;
+        }
+        if (null == node.children) {
+          node.children = new HashMap<String,Node>();
+        }
+        Node child = node.children.get(elt);
+        if (null == child) {
+          child = new Node();
+          node.children.put(elt, child);
+        }
+        node = child;
+      }
+      node.terminal = true;
+    }
+    this.size = paths.size();
+  }
+
+  @Override
+  public boolean include(TreeWalk walker) throws MissingObjectException, IncorrectObjectTypeException, IOException {
+    byte[] raw = walker.getRawPath();
+    int len = walker.getPathLength();
+
+    Node node = this.root;
+    int start = 0;
+
+    while (start < len) {
+      if (node.terminal) {
+        // Entry is below one of the paths
+        return true;
+      }
+
+      int end = start;
+      while (end < len && '/' != raw[end]) {
+        end++;
+      }
+
+      node = null == node.children ? null : node.children.get(new String(raw, start, end - start, StandardCharsets.UTF_8));
+
+      if (null == node) {
+        return false;
+      }
+
+      start = end + 1;
+    }
+
+    // Entry is one of the paths or one of their parent directories
+    return node.terminal || walker.isSubtree();
+  }
+
+  @Override
+  public boolean shouldBeRecursive() {
+    if (null == this.root.children) {
+      return false;
+    }
+    for (Node child: this.root.children.values()) {
+      if (null != child.children) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  @Override
+  public TreeFilter clone() {
+    // The filter is immutable
+    return this;
+  }
+
+  @Override
+  public String toString() {
+    return "PATHS(" + this.size + ")";
+  }
+}
@@ -0,0 +1,196 @@
+//
+//   Copyright 2021  SenX S.A.S.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.ext.git;
+
+import java.io.IOException;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.eclipse.jgit.errors.IncorrectObjectTypeException;
+import org.eclipse.jgit.errors.MissingObjectException;
+import org.eclipse.jgit.treewalk.TreeWalk;
+import org.eclipse.jgit.treewalk.filter.AndTreeFilter;
+import org.eclipse.jgit.treewalk.filter.PathFilter;
+import org.eclipse.jgit.treewalk.filter.TreeFilter;
+
+/**
+ * Tree filter selecting the files whose full path matches a regular expression.
+ *
+ * Subtrees are only entered if some path below them could still match the regular expression,
+ * so a walk scoped to a subdirectory does not visit the rest of the repository.
+ */
+public class GitRegexpTreeFilter extends TreeFilter {
+
+  private final Pattern pattern;
+  private final Matcher matcher;
+
+  public GitRegexpTreeFilter(String regexp) {
+    this(Pattern.compile(regexp));
+  }
+
+  private GitRegexpTreeFilter(Pattern pattern) {
+    this.pattern = pattern;
+    this.matcher = pattern.matcher("");
+  }
+
+  /**
+   * Scope a regular expression relative to 'subdir' so it applies to paths relative to the repository root.
+   * The regular expression is enclosed in a group so alternatives cannot match outside of 'subdir'.
+   *
+   * @param regexp Regular expression to scope, if null all the paths under 'subdir' will match
+   * @param subdir Subdirectory the regular expression is relative to, or null
+   */
+  public static String scope(String regexp, String subdir) {
+    if (null == subdir) {
+      return regexp;
+    }
+
+    if (null == regexp) {
+      return Pattern.quote(subdir) + "/.*";
+    } else if (regexp.startsWith("^")) {
+      return "^" + Pattern.quote(subdir) + "/(?:" + regexp.substring(1) + ")";
+    } else {
+      return Pattern.quote(subdir) + "/(?:" + regexp + ")";
+    }
+  }
+
+  /**
+   * Create a filter for a regular expression applying to paths relative to the repository root.
+   * If the regular expression starts with a literal directory, the walk is restricted to that
+   * directory before the regular expression is even evaluated.
+   */
+  public static TreeFilter create(String regexp) {
+    TreeFilter filter = new GitRegexpTreeFilter(regexp);
+
+    String prefix = prefix(regexp);
+
+    if (null == prefix) {
+      return filter;
+    }
+
+    return AndTreeFilter.create(PathFilter.create(prefix), filter);
+  }
+
+  /**
+   * Create a filter for a regular expression scoped to 'subdir' by {@link #scope(String, String)}. The walk
+   * is always restricted to 'subdir', even if the regular expression does not start with a literal directory.
+   *
+   * @param regexp Scoped regular expression, or null to select all the paths under 'subdir'
+   * @param subdir Subdirectory the walk is restricted to, or null
+   */
+  public static TreeFilter create(String regexp, String subdir) {
+    TreeFilter filter = null == regexp ? TreeFilter.ALL : create(regexp);
+
+    if (null == subdir) {
+      return filter;
+    }
+
+    return AndTreeFilter.create(PathFilter.create(subdir), filter);
+  }
+
+  /**
+   * Extract the literal directory a regular expression starts with.
+   *
+   * @return The directory, without a trailing '/', or null if the regular expression does not start with a literal directory
+   */
+  static String prefix(String regexp) {
+    // Alternatives could match outside of the prefix
+    if (regexp.indexOf('|') >= 0) {
+      return null;
+    }
+
+    StringBuilder sb = new StringBuilder();
+
+    int idx = regexp.startsWith("^") ? 1 : 0;
+
+    while (idx < regexp.length()) {
+      char c = regexp.charAt(idx);
+
+      if (regexp.startsWith("\\Q", idx)) {
+        int end = regexp.indexOf("\\E", idx + 2);
+        if (end < 0) {
+          sb.append(regexp.substring(idx + 2));
+          idx = regexp.length();
+        } else {
+          sb.append(regexp, idx + 2, end);
+          idx = end + 2;
+        }
+      } else if ('\\' == c) {
+        // Only escaped punctuation is literal, other escapes are character classes or assertions
+        if (idx + 1 >= regexp.length() || Character.isLetterOrDigit(regexp.charAt(idx + 1))) {
+          break;
+        }
+        sb.append(regexp.charAt(idx + 1));
+        idx += 2;
+      } else if (".[]{}()*+?^$".indexOf(c) >= 0) {
+        break;
+      } else {
+        sb.append(c);
+        idx++;
+      }
+    }
+
+    // A quantifier applies to the last literal character
+    if (idx < regexp.length() && "*+?{".indexOf(regexp.charAt(idx)) >= 0 && sb.length() > 0) {
+      sb.setLength(sb.length() - 1);
+    }
+
+    int slash = sb.lastIndexOf("/");
+
+    if (slash <= 0) {
+      return null;
+    }
+
+    String prefix = sb.substring(0, slash);
+
+    // Empty path elements can never match a path in a tree
+    if (prefix.startsWith("/") || prefix.contains("//")) {
+      return null;
+    }
+
+    return prefix;
+  }
+
+  @Override
+  public boolean shouldBeRecursive() {
+    return true;
+  }
+
+  @Override
+  public boolean include(TreeWalk walker) throws MissingObjectException, IncorrectObjectTypeException, IOException {
+    if (walker.isSubtree()) {
+      //
+      // Enter the subtree if its path followed by a '/' matches, or could match if more
+      // characters were appended to it
+      //
+      this.matcher.reset(walker.getPathString() + "/");
+      return this.matcher.matches() || this.matcher.hitEnd();
+    }
+
+    return this.matcher.reset(walker.getPathString()).matches();
+  }
+
+  @Override
+  public TreeFilter clone() {
+    return new GitRegexpTreeFilter(this.pattern);
+  }
+
+  @Override
+  public String toString() {
+    return this.pattern.pattern();
+  }
+}
@@ -0,0 +1,395 @@
+//
+//   Copyright 2021  SenX S.A.S.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.ext.git;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.errors.RepositoryNotFoundException;
+import org.eclipse.jgit.lib.Repository;
+
+/**
+ * Process wide cache of opened repositories, keyed by repository name.
+ *
+ * Handles are reference counted, a repository is only closed once it is no longer
+ * in use and has either been idle for too long, been evicted because too many
+ * repositories are open, or had its pack directory modified on disk.
+ *
+ * In-memory repositories are never evicted because too many repositories are open, closing them
+ * discards their content. They are only discarded once unused for the configured memory idle time.
+ */
+public class GitRepositoryCache {
+
+  /**
+   * Cached repository, shared by all the handles acquired on it
+   */
+  private static class Entry {
+    private final String name;
+    private final Git git;
+    private final File packdir;
+    private long packstamp;
+    private int refcount = 0;
+    private long lastaccess;
+    /**
+     * Set when the entry was replaced in the cache, it will be closed upon last release
+     */
+    private boolean stale = false;
+
+    private Entry(String name, Git git) {
+      this.name = name;
+      this.git = git;
+      this.packdir = null == git.getRepository().getDirectory() ? null : new File(git.getRepository().getDirectory(), "objects/pack");
+      this.packstamp = packstamp();
+    }
+
+    private long packstamp() {
+      return null == this.packdir ? 0L : this.packdir.lastModified();
+    }
+  }
+
+  /**
+   * Handle on a cached repository. Closing the handle releases it, the underlying
+   * repository is left open for subsequent calls.
+   */
+  public class Handle implements Closeable {
+    private final Entry entry;
+    private boolean closed = false;
+
+    private Handle(Entry entry) {
+      this.entry = entry;
+    }
+
+    public Git getGit() {
+      return this.entry.git;
+    }
+
+    public Repository getRepository() {
+      return this.entry.git.getRepository();
+    }
+
+    public String getName() {
+      return this.entry.name;
+    }
+
+    /**
+     * Acquire another handle on the same repository, even if it was replaced in the cache
+     * since this handle was acquired. The returned handle MUST be closed by the caller.
+     */
+    public Handle duplicate() {
+      synchronized(GitRepositoryCache.this) {
+        if (this.closed) {
+          throw new IllegalStateException("Handle is closed.");
+        }
+        this.entry.refcount++;
+        this.entry.lastaccess = System.currentTimeMillis();
+        return new Handle(this.entry);
+      }
+    }
+
+    @Override
+    public void close() {
+      synchronized(GitRepositoryCache.this) {
+        if (this.closed) {
+          return;
+        }
+        this.closed = true;
+      }
+      release(this.entry);
+    }
+  }
+
+  private final File root;
+  private final int maxopen;
+  private final long idle;
+  private final GitMemoryRepositories memory;
+  private final long memidle;
+
+  /**
+   * Cached entries, in access order so the eldest entry is the least recently used one
+   */
+  private final LinkedHashMap<String,Entry> entries = new LinkedHashMap<String,Entry>(16, 0.75F, true);
+
+  /**
+   * Entries of the in-memory repositories, kept apart so they are not trimmed
+   */
+  private final Map<String,Entry> memories = new HashMap<String,Entry>();
+
+  public GitRepositoryCache(File root, int maxopen, long idle, GitMemoryRepositories memory, long memidle) {
+    this.root = root;
+    this.maxopen = maxopen;
+    this.idle = idle;
+    this.memory = memory;
+    this.memidle = memidle;
+
+    if (idle > 0 || memidle > 0) {
+      ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+          Thread t = new Thread(r);
+          t.setName("[GitRepositoryCache Janitor]");
+          t.setDaemon(true);
+          return t;
+        }
+      });
+
+      executor.scheduleWithFixedDelay(new Runnable() {
+        @Override
+        public void run() {
+          evict();
+        }
+      }, period(), period(), TimeUnit.MILLISECONDS);
+    }
+  }
+
+  private long period() {
+    long period = Long.MAX_VALUE;
+
+    if (this.idle > 0) {
+      period = this.idle / 2;
+    }
+
+    if (this.memidle > 0) {
+      period = Math.min(period, this.memidle / 2);
+    }
+
+    return Math.max(1000L, period);
+  }
+
+  /**
+   * Acquire a handle on repository 'name'. The returned handle MUST be closed by the caller.
+   */
+  public Handle acquire(String name) throws IOException {
+    if (this.memory.isInMemory(name)) {
+      return acquireInMemory(name);
+    }
+
+    if (null == this.root) {
+      throw new RepositoryNotFoundException(name);
+    }
+
+    List<Entry> toclose = new ArrayList<Entry>();
+    Handle handle = null;
+    boolean opened = false;
+    Entry fresh = null;
+
+    try {
+      while (null == handle) {
+        synchronized(this) {
+          Entry entry = this.entries.get(name);
+
+          //
+          // If packs were added or removed since the repository was opened, replace it
+          //
+
+          if (null != entry && entry.packstamp != entry.packstamp()) {
+            this.entries.remove(name);
+            entry.stale = true;
+            if (0 == entry.refcount) {
+              toclose.add(entry);
+            }
+            entry = null;
+          }
+
+          // A repository we opened is only installed if no other caller installed one meanwhile
+          if (null == entry && null != fresh) {
+            entry = fresh;
+            fresh = null;
+            this.entries.put(name, entry);
+            opened = true;
+          }
+
+          if (null != entry) {
+            entry.refcount++;
+            entry.lastaccess = System.currentTimeMillis();
+            handle = new Handle(entry);
+
+            toclose.addAll(trim(entry));
+          }
+        }
+
+        //
+        // The repository is opened outside of the lock so a slow open does not block the
+        // calls on the other repositories
+        //
+
+        if (null == handle) {
+          fresh = new Entry(name, Git.open(new File(this.root, name)));
+        }
+      }
+    } finally {
+      // Another caller installed the repository while we were opening it
+      if (null != fresh) {
+        toclose.add(fresh);
+      }
+      for (Entry entry: toclose) {
+        entry.git.close();
+      }
+    }
+
+    if (opened) {
+      GitMetrics.opened(name);
+    }
+
+    return handle;
+  }
+
+  private Handle acquireInMemory(String name) throws IOException {
+    boolean opened = false;
+    Handle handle = null;
+    Repository repository = null;
+
+    while (null == handle) {
+      synchronized(this) {
+        Entry entry = this.memories.get(name);
+
+        // A repository opened outside of the lock is only installed if it was not detached meanwhile
+        if (null == entry && null != repository && repository == this.memory.get(name)) {
+          entry = new Entry(name, new Git(repository));
+          this.memories.put(name, entry);
+          opened = true;
+        }
+
+        if (null != entry) {
+          entry.refcount++;
+          entry.lastaccess = System.currentTimeMillis();
+          handle = new Handle(entry);
+        }
+      }
+
+      // Restoring a snapshot reads a bundle from disk, it is done outside of the lock
+      if (null == handle) {
+        repository = this.memory.open(name);
+      }
+    }
+
+    if (opened) {
+      GitMetrics.opened(name);
+    }
+
+    return handle;
+  }
+
+  private void release(Entry entry) {
+    boolean close = false;
+
+    synchronized(this) {
+      entry.refcount--;
+      entry.lastaccess = System.currentTimeMillis();
+      close = entry.stale && 0 == entry.refcount;
+    }
+
+    if (close) {
+      entry.git.close();
+    }
+  }
+
+  /**
+   * Remove the least recently used unused entries so at most 'maxopen' repositories stay open.
+   * Must be called while holding the lock on the cache.
+   *
+   * @param keep Entry which must not be removed
+   * @return The list of entries to close
+   */
+  private List<Entry> trim(Entry keep) {
+    List<Entry> removed = new ArrayList<Entry>();
+
+    if (this.entries.size() <= this.maxopen) {
+      return removed;
+    }
+
+    Iterator<Entry> iter = this.entries.values().iterator();
+
+    while (this.entries.size() > this.maxopen && iter.hasNext()) {
+      Entry entry = iter.next();
+      if (entry != keep && 0 == entry.refcount) {
+        iter.remove();
+        forget(entry);
+        removed.add(entry);
+      }
+    }
+
+    return removed;
+  }
+
+  /**
+   * Discard the indexes of a repository removed from the cache. As it is unused, so are its indexes,
+   * and the next caller acquires it again before getting them.
+   */
+  private static void forget(Entry entry) {
+    GitPathIndex.forget(entry.name);
+    GitTagIndex.forget(entry.name);
+  }
+
+  /**
+   * Close the repositories which have not been used for the configured idle time,
+   * and discard the in-memory repositories unused for the memory idle time.
+   */
+  private void evict() {
+    List<Entry> toclose = new ArrayList<Entry>();
+    List<Entry> todrop = new ArrayList<Entry>();
+
+    synchronized(this) {
+      long now = System.currentTimeMillis();
+
+      Iterator<Entry> iter = this.entries.values().iterator();
+
+      while (this.idle > 0 && iter.hasNext()) {
+        Entry entry = iter.next();
+        if (0 == entry.refcount && now - entry.lastaccess > this.idle) {
+          iter.remove();
+          forget(entry);
+          toclose.add(entry);
+        }
+      }
+
+      iter = this.memories.values().iterator();
+
+      while (this.memidle > 0 && iter.hasNext()) {
+        Entry entry = iter.next();
+        if (0 == entry.refcount && now - entry.lastaccess > this.memidle) {
+          // Detached while holding the lock so a concurrent acquire reopens the same repository
+          iter.remove();
+          forget(entry);
+          this.memory.detach(entry.name);
+          todrop.add(entry);
+        }
+      }
+    }
+
+    for (Entry entry: toclose) {
+      entry.git.close();
+    }
+
+    // Snapshots are written outside of the lock
+    for (Entry entry: todrop) {
+      this.memory.drop(entry.name);
+    }
+
+  }
+}
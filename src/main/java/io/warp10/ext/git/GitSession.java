@@ -0,0 +1,367 @@
+//
+//   Copyright 2021  SenX S.A.S.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.ext.git;
+
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.jgit.errors.RevisionSyntaxException;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.Repository;
+
+import io.warp10.script.WarpScriptException;
+import io.warp10.script.WarpScriptStack;
+import io.warp10.warp.sdk.Capabilities;
+
+/**
+ * Repository a function operates on, together with the capabilities it was granted.
+ *
+ * Sessions opened by GITOPEN are checked against the capabilities once, keep the repository
+ * open and pin the commit HEAD resolved to, so subsequent reads of HEAD, or of revisions
+ * relative to it, see the same snapshot. Commits made through the session are only made on top of
+ * the pinned commit, unless another parent is given, and move the pin. Calls
+ * given a repository name use a transient session which checks the capabilities and resolves
+ * HEAD on each call.
+ *
+ * Open sessions are closed by GITCLOSE, or by a background thread once the stack which opened
+ * them is gone or they have not been used for the configured idle time.
+ */
+public class GitSession {
+
+  private static final Set<GitSession> sessions = ConcurrentHashMap.newKeySet();
+
+  private final String repo;
+  private final Map<String,String> capabilities;
+
+  /**
+   * Stack the session belongs to, null for a transient session
+   */
+  private final WeakReference<WarpScriptStack> owner;
+
+  /**
+   * Handle kept while the session is open, null for a transient session
+   */
+  private GitRepositoryCache.Handle handle;
+
+  /**
+   * Commit HEAD is pinned to, null if the repository had no commit when the session was opened
+   */
+  private ObjectId commit;
+
+  /**
+   * Branch HEAD pointed to when the session was opened, null if HEAD was detached
+   */
+  private String branch;
+
+  private long lastaccess;
+
+  private GitSession(String repo, Map<String,String> capabilities, WarpScriptStack owner) {
+    this.repo = repo;
+    this.capabilities = capabilities;
+    this.owner = null == owner ? null : new WeakReference<WarpScriptStack>(owner);
+    this.lastaccess = System.currentTimeMillis();
+  }
+
+  /**
+   * Return the session designated by the value of the 'repo' parameter of a function, either an
+   * open session or the name of a repository for which the stack must have the capability.
+   */
+  public static GitSession get(WarpScriptStack stack, String function, Object repo) throws WarpScriptException {
+    if (repo instanceof GitSession) {
+      GitSession session = (GitSession) repo;
+
+      synchronized(session) {
+        if (null == session.handle) {
+          throw new WarpScriptException(function + " session on repository '" + session.repo + "' is closed.");
+        }
+
+        if (stack != session.owner.get()) {
+          throw new WarpScriptException(function + " session on repository '" + session.repo + "' was opened by another stack.");
+        }
+
+        session.lastaccess = System.currentTimeMillis();
+      }
+
+      GitMetrics.repo(session.repo);
+
+      return session;
+    }
+
+    if (!(repo instanceof String)) {
+      throw new WarpScriptException(function + " unset repository under key '" + GitWarpScriptExtension.PARAM_REPO + "'.");
+    }
+
+    //
+    // Check that the root is configured and that the stack has the correct capability
+    //
+
+    if (null == GitWarpScriptExtension.getRoot() && !GitWarpScriptExtension.getMemoryRepositories().isInMemory((String) repo)) {
+      throw new WarpScriptException(function + " Git root was not configured.");
+    }
+
+    Map<String,String> capabilities = Capabilities.get(stack, (List) null);
+
+    if (!repo.equals(capabilities.get(GitWarpScriptExtension.CAP_GITREPO))) {
+      throw new WarpScriptException(function + " missing or invalid '" + GitWarpScriptExtension.CAP_GITREPO + "' capability.");
+    }
+
+    GitMetrics.repo((String) repo);
+
+    return new GitSession((String) repo, capabilities, null);
+  }
+
+  /**
+   * Open a session on the repository of a transient session, pinned to the commit 'rev' resolves to
+   *
+   * @return The session or null if 'rev' does not resolve to a commit
+   */
+  public static GitSession open(WarpScriptStack stack, GitSession session, String rev) throws IOException {
+    GitSession opened = new GitSession(session.repo, new HashMap<String,String>(session.capabilities), stack);
+
+    GitRepositoryCache.Handle handle = GitWarpScriptExtension.acquire(session.repo);
+
+    try {
+      ObjectId commit = handle.getRepository().resolve(rev + "^{commit}");
+
+      if (null == commit && !Constants.HEAD.equals(rev)) {
+        handle.close();
+        return null;
+      }
+
+      Ref head = handle.getRepository().exactRef(Constants.HEAD);
+
+      opened.commit = commit;
+      opened.branch = null != head && head.isSymbolic() ? head.getTarget().getName() : null;
+      opened.handle = handle;
+    } catch (IOException|RuntimeException e) {
+      handle.close();
+      throw e;
+    }
+
+    sessions.add(opened);
+
+    return opened;
+  }
+
+  public String getRepo() {
+    return this.repo;
+  }
+
+  public Map<String,String> getCapabilities() {
+    return this.capabilities;
+  }
+
+  public boolean isPinned() {
+    return null != this.owner;
+  }
+
+  /**
+   * Acquire a handle on the repository of the session. The returned handle MUST be closed by the caller.
+   */
+  public GitRepositoryCache.Handle acquire() throws IOException {
+    if (!isPinned()) {
+      return GitWarpScriptExtension.acquire(this.repo);
+    }
+
+    synchronized(this) {
+      if (null == this.handle) {
+        throw new IOException("Session is closed.");
+      }
+      return this.handle.duplicate();
+    }
+  }
+
+  /**
+   * Resolve a revision. For an open session, revisions starting with HEAD or the branch HEAD pointed to,
+   * such as 'HEAD~1' or 'master^', are resolved relative to the pinned commit.
+   */
+  public ObjectId resolve(Repository repository, String rev) throws IOException {
+    if (!isPinned()) {
+      return repository.resolve(rev);
+    }
+
+    //
+    // Split the revision into the ref it starts with and the suffix navigating from it
+    //
+
+    int idx = 0;
+
+    while (idx < rev.length() && "~^:@".indexOf(rev.charAt(idx)) < 0) {
+      idx++;
+    }
+
+    String base = rev.substring(0, idx);
+    String suffix = rev.substring(idx);
+
+    ObjectId pinned;
+    String branch;
+
+    synchronized(this) {
+      pinned = this.commit;
+      branch = this.branch;
+    }
+
+    boolean head = Constants.HEAD.equals(base);
+
+    // '@' alone is a shortcut for HEAD
+    if (base.isEmpty() && suffix.startsWith("@") && !suffix.startsWith("@{")) {
+      head = true;
+      suffix = suffix.substring(1);
+    }
+
+    if (!head && null != branch) {
+      head = base.equals(branch) || base.equals(Repository.shortenRefName(branch)) || base.equals(branch.substring(Constants.R_REFS.length()));
+    }
+
+    if (!head) {
+      return repository.resolve(rev);
+    }
+
+    // The reflog is not pinned
+    if (suffix.startsWith("@")) {
+      throw new RevisionSyntaxException("Reflog of HEAD cannot be used in a session.", rev);
+    }
+
+    if (null == pinned) {
+      return null;
+    }
+
+    return suffix.isEmpty() ? pinned : repository.resolve(pinned.name() + suffix);
+  }
+
+  /**
+   * Return the commit HEAD is expected to point to by a write through the session, or null if
+   * the write can be committed on top of the current HEAD.
+   *
+   * An unknown parent revision is replaced by the zero id so it conflicts with any HEAD. Without a
+   * parent revision, a write through an open session expects HEAD to still point to the pinned
+   * commit, so it does not silently commit on top of changes the session does not see.
+   */
+  public ObjectId expected(Repository repository, String parent) throws IOException {
+    if (null == parent) {
+      if (!isPinned()) {
+        return null;
+      }
+
+      synchronized(this) {
+        return this.commit;
+      }
+    }
+
+    ObjectId expected = resolve(repository, parent);
+
+    return null == expected ? ObjectId.zeroId() : expected;
+  }
+
+  /**
+   * Move the pin to a commit created through the session
+   */
+  public void advance(ObjectId commit) {
+    if (isPinned() && null != commit) {
+      synchronized(this) {
+        this.commit = commit;
+      }
+    }
+  }
+
+  /**
+   * Close the session on behalf of a stack, which must be the one which opened it
+   */
+  public void close(WarpScriptStack stack, String function) throws WarpScriptException {
+    synchronized(this) {
+      if (null != this.owner && stack != this.owner.get()) {
+        throw new WarpScriptException(function + " session on repository '" + this.repo + "' was opened by another stack.");
+      }
+    }
+
+    close();
+  }
+
+  public void close() {
+    GitRepositoryCache.Handle handle;
+
+    synchronized(this) {
+      handle = this.handle;
+      this.handle = null;
+    }
+
+    sessions.remove(this);
+
+    if (null != handle) {
+      handle.close();
+    }
+  }
+
+  /**
+   * Start the background thread closing the sessions which are no longer used
+   *
+   * @param idle Delay in ms after which an unused session is closed
+   */
+  public static void janitor(final long idle) {
+    ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread t = new Thread(r);
+        t.setName("[GitSession Janitor]");
+        t.setDaemon(true);
+        return t;
+      }
+    });
+
+    executor.scheduleWithFixedDelay(new Runnable() {
+      @Override
+      public void run() {
+        expire(idle);
+      }
+    }, 1000L, 1000L, TimeUnit.MILLISECONDS);
+  }
+
+  private static void expire(long idle) {
+    List<GitSession> expired = new ArrayList<GitSession>();
+
+    long now = System.currentTimeMillis();
+
+    for (GitSession session: sessions) {
+      synchronized(session) {
+        if (null == session.owner.get() || now - session.lastaccess > idle) {
+          expired.add(session);
+        }
+      }
+    }
+
+    for (GitSession session: expired) {
+      session.close();
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "GitSession{" + this.repo + "}";
+  }
+}
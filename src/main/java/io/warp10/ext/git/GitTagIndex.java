@@ -0,0 +1,142 @@
+//
+//   Copyright 2021  SenX S.A.S.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.ext.git;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.Repository;
+
+/**
+ * Per repository index of the tags, keyed by the id of the object they peel to.
+ *
+ * The index is rebuilt only when the tag refs change. Tag objects being immutable, the
+ * peeled targets of the tags which were already known are reused when rebuilding.
+ */
+public class GitTagIndex {
+
+  private static final Map<String,GitTagIndex> indexes = new ConcurrentHashMap<String,GitTagIndex>();
+
+  /**
+   * Tag refs the index was built from, ref name to tag object id
+   */
+  private Map<String,ObjectId> refs = null;
+
+  /**
+   * Tag object id to the id of the object it peels to
+   */
+  private Map<ObjectId,ObjectId> peeled = new HashMap<ObjectId,ObjectId>();
+
+  /**
+   * Peeled object id to the tag refs pointing to it
+   */
+  private Map<ObjectId,List<Ref>> tags = Collections.emptyMap();
+
+  private GitTagIndex() {
+  }
+
+  public static GitTagIndex get(String repo) {
+    GitTagIndex index = indexes.get(repo);
+
+    if (null == index) {
+      indexes.putIfAbsent(repo, new GitTagIndex());
+      index = indexes.get(repo);
+    }
+
+    return index;
+  }
+
+  /**
+   * Discard the index of a repository, it is rebuilt on next use. Must only be called while the
+   * repository is not in use.
+   */
+  public static void forget(String repo) {
+    indexes.remove(repo);
+  }
+
+  /**
+   * Return the index for the current tag refs of a repository. The object id of an annotated tag
+   * ref is the id of its tag object, the one of a lightweight tag ref is the id it is indexed under.
+   *
+   * @return An immutable map of peeled object id to the tag refs pointing to it
+   */
+  public synchronized Map<ObjectId,List<Ref>> tags(Repository repository) throws IOException {
+    List<Ref> current = repository.getRefDatabase().getRefsByPrefix(Constants.R_TAGS);
+
+    Map<String,ObjectId> refs = new HashMap<String,ObjectId>();
+
+    for (Ref ref: current) {
+      if (null != ref.getObjectId()) {
+        refs.put(ref.getName(), ref.getObjectId());
+      }
+    }
+
+    if (refs.equals(this.refs)) {
+      return this.tags;
+    }
+
+    Map<ObjectId,ObjectId> peeled = new HashMap<ObjectId,ObjectId>();
+    Map<ObjectId,List<Ref>> tags = new HashMap<ObjectId,List<Ref>>();
+
+    for (Ref ref: current) {
+      ObjectId id = ref.getObjectId();
+
+      if (null == id) {
+        continue;
+      }
+
+      ObjectId target;
+
+      if (this.peeled.containsKey(id)) {
+        target = this.peeled.get(id);
+      } else {
+        Ref pref = ref.isPeeled() ? ref : repository.getRefDatabase().peel(ref);
+        target = pref.getPeeledObjectId();
+
+        // Lightweight tags peel to nothing, they are indexed under the object they point to
+        if (null == target) {
+          target = id;
+        }
+      }
+
+      peeled.put(id, target);
+
+      List<Ref> refsto = tags.get(target);
+
+      if (null == refsto) {
+        refsto = new ArrayList<Ref>();
+        tags.put(target, refsto);
+      }
+
+      refsto.add(ref);
+    }
+
+    this.refs = refs;
+    this.peeled = peeled;
+    this.tags = Collections.unmodifiableMap(tags);
+
+    return this.tags;
+  }
+}
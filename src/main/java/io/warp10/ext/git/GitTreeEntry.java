@@ -0,0 +1,55 @@
+//
+//   Copyright 2021  SenX S.A.S.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.ext.git;
+
+import org.eclipse.jgit.lib.FileMode;
+import org.eclipse.jgit.lib.ObjectId;
+
+/**
+ * Immutable entry of a tree listing, the path is relative to the subdirectory which was listed.
+ */
+public class GitTreeEntry {
+
+  private final String path;
+  private final ObjectId id;
+  private final FileMode mode;
+
+  public GitTreeEntry(String path, ObjectId id, FileMode mode) {
+    this.path = path;
+    this.id = id;
+    this.mode = mode;
+  }
+
+  public String getPath() {
+    return this.path;
+  }
+
+  public ObjectId getId() {
+    return this.id;
+  }
+
+  public FileMode getMode() {
+    return this.mode;
+  }
+
+  /**
+   * Mode in its octal git representation, e.g. 100644
+   */
+  public String getModeString() {
+    return Integer.toOctalString(this.mode.getBits());
+  }
+}
@@ -17,10 +17,26 @@
 package io.warp10.ext.git;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
+import org.eclipse.jgit.api.errors.ConcurrentRefUpdateException;
+import org.eclipse.jgit.api.errors.RefAlreadyExistsException;
+import org.eclipse.jgit.errors.AmbiguousObjectException;
+import org.eclipse.jgit.errors.CorruptObjectException;
+import org.eclipse.jgit.errors.IncorrectObjectTypeException;
+import org.eclipse.jgit.errors.LargeObjectException;
+import org.eclipse.jgit.errors.LockFailedException;
+import org.eclipse.jgit.errors.MissingObjectException;
+import org.eclipse.jgit.errors.RepositoryNotFoundException;
+import org.eclipse.jgit.errors.RevisionSyntaxException;
+import org.eclipse.jgit.lib.ObjectId;
+
 import io.warp10.WarpConfig;
+import io.warp10.script.NamedWarpScriptFunction;
+import io.warp10.script.WarpScriptException;
 import io.warp10.warp.sdk.WarpScriptExtension;
 
 public class GitWarpScriptExtension extends WarpScriptExtension {
@@ -33,12 +49,117 @@ public class GitWarpScriptExtension extends WarpScriptExtension {
    */
   public static final String CONF_ROOT = "git.root";
 
+  /**
+   * Maximum number of repositories kept open, defaults to 64
+   */
+  public static final String CONF_CACHE_MAXOPEN = "git.cache.maxopen";
+
+  /**
+   * Delay (in ms) after which an unused repository is closed, defaults to 300000
+   */
+  public static final String CONF_CACHE_IDLE = "git.cache.idle";
+
+  /**
+   * Delay (in ms) during which concurrent writes to a repository are gathered into a single commit, defaults to 0
+   */
+  public static final String CONF_WRITE_WINDOW = "git.write.window";
+
+  /**
+   * Maximum number of bytes of blob content kept in memory, defaults to 67108864 (64 MiB)
+   */
+  public static final String CONF_CACHE_BLOB_BYTES = "git.cache.blob.bytes";
+
+  /**
+   * Size (in bytes) above which blobs are not cached, defaults to 1048576 (1 MiB)
+   */
+  public static final String CONF_CACHE_BLOB_MAXSIZE = "git.cache.blob.maxsize";
+
+  /**
+   * Maximum number of (repository, commit, path) to blob id resolutions kept in memory, defaults to 100000
+   */
+  public static final String CONF_CACHE_PATH_ENTRIES = "git.cache.path.entries";
+
+  /**
+   * Maximum total number of paths of GITFIND listings kept in memory, defaults to 1000000
+   */
+  public static final String CONF_CACHE_FIND_ENTRIES = "git.cache.find.entries";
+
+  /**
+   * Set to false to disable the on-disk index of the commits modifying each path used by GITLOG, defaults to true
+   */
+  public static final String CONF_INDEX_PATHS = "git.index.paths";
+
+  /**
+   * Number of commits after which a repository is garbage collected in the background, defaults to 0 (no maintenance)
+   */
+  public static final String CONF_MAINTENANCE_WRITES = "git.maintenance.writes";
+
+  /**
+   * Delay (in ms) between two checks of the repositories needing maintenance, defaults to 60000
+   */
+  public static final String CONF_MAINTENANCE_INTERVAL = "git.maintenance.interval";
+
+  /**
+   * Set to false to disable the Sensision metrics of the functions, defaults to true
+   */
+  public static final String CONF_METRICS = "git.metrics";
+
+  /**
+   * Delay (in ms) after which a session which was not used is closed, defaults to 300000
+   */
+  public static final String CONF_SESSION_IDLE = "git.session.idle";
+
+  /**
+   * Maximum time (in ms) GITWAIT may block, defaults to 60000
+   */
+  public static final String CONF_WAIT_MAXTIMEOUT = "git.wait.maxtimeout";
+
+  /**
+   * Interval (in ms) at which GITWAIT checks for changes made outside of the extension, defaults to 1000
+   */
+  public static final String CONF_WAIT_POLL = "git.wait.poll";
+
+  /**
+   * Maximum size (in bytes) of the content GITLOAD will return for a single file, defaults to 0 (no limit)
+   */
+  public static final String CONF_LOAD_MAXSIZE = "git.load.maxsize";
+
+  /**
+   * Prefix of the names of the repositories held in memory instead of under the root directory, defaults to none
+   */
+  public static final String CONF_MEMORY_PREFIX = "git.memory.prefix";
+
+  /**
+   * Maximum total size (in bytes) of the in-memory repositories, defaults to 256 MiB
+   */
+  public static final String CONF_MEMORY_MAXSIZE = "git.memory.maxsize";
+
+  /**
+   * Delay (in ms) after which an unused in-memory repository is discarded, defaults to 0 (never)
+   */
+  public static final String CONF_MEMORY_IDLE = "git.memory.idle";
+
+  /**
+   * Directory where in-memory repositories are snapshotted as bundles, defaults to none (no snapshot)
+   */
+  public static final String CONF_MEMORY_SNAPSHOT_DIR = "git.memory.snapshot.dir";
+
+  /**
+   * Delay (in ms) between two snapshots of the modified in-memory repositories, defaults to 60000
+   */
+  public static final String CONF_MEMORY_SNAPSHOT_INTERVAL = "git.memory.snapshot.interval";
+
   public static final String GITLOAD = "GITLOAD";
   public static final String GITSTORE = "GITSTORE";
   public static final String GITRM = "GITRM";
   public static final String GITFIND = "GITFIND";
   public static final String GITLOG = "GITLOG";
   public static final String GITTAG = "GITTAG";
+  public static final String GITSTATS = "GITSTATS";
+  public static final String GITCHANGES = "GITCHANGES";
+  public static final String GITWAIT = "GITWAIT";
+  public static final String GITOPEN = "GITOPEN";
+  public static final String GITCLOSE = "GITCLOSE";
 
   /**
    * Repository the token can access
@@ -76,6 +197,20 @@ public class GitWarpScriptExtension extends WarpScriptExtension {
   public static final String PARAM_TAG = "tag";
   public static final String PARAM_FORCE = "force";
   public static final String PARAM_WORKDIR = "workdir";
+  public static final String PARAM_FILES = "files";
+  public static final String PARAM_PARENT = "parent";
+  public static final String PARAM_REBASE = "rebase";
+  public static final String PARAM_SIZE = "size";
+  public static final String PARAM_OFFSET = "offset";
+  public static final String PARAM_LENGTH = "length";
+  public static final String PARAM_SINCE = "since";
+  public static final String PARAM_UNTIL = "until";
+  public static final String PARAM_WITHREV = "withrev";
+  public static final String PARAM_METADATA = "metadata";
+  public static final String PARAM_CURSOR = "cursor";
+  public static final String PARAM_FROM = "from";
+  public static final String PARAM_TO = "to";
+  public static final String PARAM_TIMEOUT = "timeout";
 
   public static final String INFOS_REV = "rev";
   public static final String INFOS_MESSAGE = "message";
@@ -89,9 +224,53 @@ public class GitWarpScriptExtension extends WarpScriptExtension {
   public static final String INFOS_TAG = "tag";
   public static final String INFOS_TAGGED = "tagged";
   public static final String INFOS_TAGS = "tags";
+  public static final String INFOS_CONFLICT = "conflict";
+  public static final String INFOS_FILES = "files";
+  public static final String INFOS_PATH = "path";
+  public static final String INFOS_ID = "id";
+  public static final String INFOS_MODE = "mode";
+  public static final String INFOS_SIZE = "size";
+  public static final String INFOS_ENTRIES = "entries";
+  public static final String INFOS_CURSOR = "cursor";
+  public static final String INFOS_FROM = "from";
+  public static final String INFOS_TO = "to";
+  public static final String INFOS_CHANGES = "changes";
+  public static final String INFOS_CHANGE = "change";
 
   private static final File ROOT;
 
+  private static final GitRepositoryCache CACHE;
+
+  private static final GitMemoryRepositories MEMORY;
+
+  private static final long WRITE_WINDOW;
+
+  /**
+   * Cache of blob contents, keyed by blob id
+   */
+  private static final GitLRUCache<ObjectId,byte[]> BLOBS;
+
+  /**
+   * Cache of path resolutions, keyed by repository, commit id and path. A zero id
+   * denotes a path which does not exist in the commit.
+   */
+  private static final GitLRUCache<String,ObjectId> PATHS;
+
+  /**
+   * Cache of GITFIND listings, keyed by tree id and effective regular expression
+   */
+  private static final GitLRUCache<String,List<GitTreeEntry>> LISTINGS;
+
+  private static final long LOAD_MAXSIZE;
+
+  private static final boolean INDEX_PATHS;
+
+  private static final GitMaintenance MAINTENANCE;
+
+  private static final long WAIT_MAXTIMEOUT;
+
+  private static final long WAIT_POLL;
+
   static {
 
     String root = WarpConfig.getProperty(CONF_ROOT);
@@ -106,6 +285,54 @@ public class GitWarpScriptExtension extends WarpScriptExtension {
       ROOT = null;
     }
 
+    String snapshots = WarpConfig.getProperty(CONF_MEMORY_SNAPSHOT_DIR);
+
+    MEMORY = new GitMemoryRepositories(WarpConfig.getProperty(CONF_MEMORY_PREFIX),
+        Long.parseLong(WarpConfig.getProperty(CONF_MEMORY_MAXSIZE, "268435456")),
+        null == snapshots ? null : new File(snapshots),
+        Long.parseLong(WarpConfig.getProperty(CONF_MEMORY_SNAPSHOT_INTERVAL, "60000")));
+
+    CACHE = new GitRepositoryCache(ROOT,
+        Integer.parseInt(WarpConfig.getProperty(CONF_CACHE_MAXOPEN, "64")),
+        Long.parseLong(WarpConfig.getProperty(CONF_CACHE_IDLE, "300000")),
+        MEMORY,
+        Long.parseLong(WarpConfig.getProperty(CONF_MEMORY_IDLE, "0")));
+
+    WRITE_WINDOW = Long.parseLong(WarpConfig.getProperty(CONF_WRITE_WINDOW, "0"));
+
+    BLOBS = new GitLRUCache<ObjectId,byte[]>("blob",
+        Long.parseLong(WarpConfig.getProperty(CONF_CACHE_BLOB_BYTES, "67108864")),
+        Long.parseLong(WarpConfig.getProperty(CONF_CACHE_BLOB_MAXSIZE, "1048576"))) {
+      @Override
+      protected long weigh(byte[] value) {
+        return value.length;
+      }
+    };
+
+    long pathentries = Long.parseLong(WarpConfig.getProperty(CONF_CACHE_PATH_ENTRIES, "100000"));
+    PATHS = new GitLRUCache<String,ObjectId>("path", pathentries, pathentries);
+
+    long findentries = Long.parseLong(WarpConfig.getProperty(CONF_CACHE_FIND_ENTRIES, "1000000"));
+    LISTINGS = new GitLRUCache<String,List<GitTreeEntry>>("find", findentries, findentries) {
+      @Override
+      protected long weigh(List<GitTreeEntry> value) {
+        return 1L + value.size();
+      }
+    };
+
+    LOAD_MAXSIZE = Long.parseLong(WarpConfig.getProperty(CONF_LOAD_MAXSIZE, "0"));
+
+    INDEX_PATHS = "true".equals(WarpConfig.getProperty(CONF_INDEX_PATHS, "true"));
+
+    MAINTENANCE = new GitMaintenance(
+        Long.parseLong(WarpConfig.getProperty(CONF_MAINTENANCE_WRITES, "0")),
+        Long.parseLong(WarpConfig.getProperty(CONF_MAINTENANCE_INTERVAL, "60000")));
+
+    WAIT_MAXTIMEOUT = Long.parseLong(WarpConfig.getProperty(CONF_WAIT_MAXTIMEOUT, "60000"));
+    WAIT_POLL = Long.parseLong(WarpConfig.getProperty(CONF_WAIT_POLL, "1000"));
+
+    GitSession.janitor(Long.parseLong(WarpConfig.getProperty(CONF_SESSION_IDLE, "300000")));
+
     functions = new HashMap<String,Object>();
 
     functions.put(GITLOAD, new GITLOAD(GITLOAD));
@@ -114,6 +341,17 @@ public class GitWarpScriptExtension extends WarpScriptExtension {
     functions.put(GITFIND, new GITFIND(GITFIND));
     functions.put(GITLOG, new GITLOG(GITLOG));
     functions.put(GITTAG, new GITTAG(GITTAG));
+    functions.put(GITSTATS, new GITSTATS(GITSTATS));
+    functions.put(GITCHANGES, new GITCHANGES(GITCHANGES));
+    functions.put(GITWAIT, new GITWAIT(GITWAIT));
+    functions.put(GITOPEN, new GITOPEN(GITOPEN));
+    functions.put(GITCLOSE, new GITCLOSE(GITCLOSE));
+
+    if ("true".equals(WarpConfig.getProperty(CONF_METRICS, "true"))) {
+      for (Map.Entry<String,Object> entry: functions.entrySet()) {
+        entry.setValue(GitMetrics.instrument((NamedWarpScriptFunction) entry.getValue()));
+      }
+    }
   }
 
   @Override
@@ -124,4 +362,88 @@ public class GitWarpScriptExtension extends WarpScriptExtension {
   public static File getRoot() {
     return ROOT;
   }
+
+  public static GitMemoryRepositories getMemoryRepositories() {
+    return MEMORY;
+  }
+
+  /**
+   * Acquire a shared handle on a repository under the root directory or held in memory.
+   * The handle must be closed once the caller is done with the repository.
+   */
+  public static GitRepositoryCache.Handle acquire(String repo) throws IOException {
+    return CACHE.acquire(repo);
+  }
+
+  /**
+   * Build the exception reported when accessing a repository failed. The original exception is not
+   * included so we do not leak internal paths, only the kind of failure is reported.
+   *
+   * @param message Message of the exception, without final punctuation
+   */
+  public static WarpScriptException error(String message, Throwable t) {
+    String reason;
+
+    if (t instanceof RepositoryNotFoundException) {
+      reason = "repository not found";
+    } else if (t instanceof MissingObjectException) {
+      reason = "missing object";
+    } else if (t instanceof IncorrectObjectTypeException) {
+      reason = "unexpected object type";
+    } else if (t instanceof CorruptObjectException) {
+      reason = "corrupt object";
+    } else if (t instanceof AmbiguousObjectException) {
+      reason = "ambiguous revision";
+    } else if (t instanceof RevisionSyntaxException) {
+      reason = "invalid revision";
+    } else if (t instanceof LargeObjectException) {
+      reason = "object too large";
+    } else if (t instanceof GitMemoryFullException) {
+      reason = "memory budget exhausted";
+    } else if (t instanceof LockFailedException || t instanceof ConcurrentRefUpdateException) {
+      reason = "unable to lock";
+    } else if (t instanceof RefAlreadyExistsException) {
+      reason = "ref already exists";
+    } else if (t instanceof IOException) {
+      reason = "I/O error";
+    } else {
+      reason = "internal error";
+    }
+
+    GitMetrics.error(reason);
+
+    return new WarpScriptException(message + ", " + reason + ".");
+  }
+
+  public static long getWriteWindow() {
+    return WRITE_WINDOW;
+  }
+
+  public static GitLRUCache<ObjectId,byte[]> getBlobCache() {
+    return BLOBS;
+  }
+
+  public static GitLRUCache<String,ObjectId> getPathCache() {
+    return PATHS;
+  }
+
+  public static GitLRUCache<String,List<GitTreeEntry>> getListingCache() {
+    return LISTINGS;
+  }
+
+  public static long getLoadMaxSize() {
+    return LOAD_MAXSIZE;
+  }
+
+  public static boolean usePathIndex() {
+    return INDEX_PATHS;
+  }
+
+  public static long getWaitMaxTimeout() {
+    return WAIT_MAXTIMEOUT;
+  }
+
+  public static long getWaitPoll() {
+    return WAIT_POLL;
+  }
 }
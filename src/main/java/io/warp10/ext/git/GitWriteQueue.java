@@ -0,0 +1,372 @@
+//
+//   Copyright 2021  SenX S.A.S.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.ext.git;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.PersonIdent;
+import org.eclipse.jgit.lib.Repository;
+
+/**
+ * Per repository queue of write requests.
+ *
+ * Writers are serialized, the first writer to find the queue idle becomes the leader and
+ * commits on behalf of all the requests queued in the meantime (group commit). Consecutive
+ * requests from the same author are coalesced into a single commit, each caller receives the
+ * id of the commit which contains its changes.
+ */
+public class GitWriteQueue {
+
+  private static final Map<String,GitWriteQueue> queues = new ConcurrentHashMap<String,GitWriteQueue>();
+
+  private static class Request {
+    private final Map<String,byte[]> changes;
+    private final PersonIdent author;
+    private final PersonIdent committer;
+    private final String message;
+    private final ObjectId expected;
+    private final boolean rebase;
+
+    private boolean processed = false;
+    private boolean done = false;
+    private ObjectId commit = null;
+    private IOException error = null;
+
+    private Request(Map<String,byte[]> changes, PersonIdent author, PersonIdent committer, String message, ObjectId expected, boolean rebase) {
+      this.changes = changes;
+      this.author = author;
+      this.committer = committer;
+      this.message = message;
+      this.expected = expected;
+      this.rebase = rebase;
+    }
+
+    /**
+     * Check whether this request can be merged in the same commit as another one. Requests
+     * with an expected parent are always committed on their own.
+     */
+    private boolean mergeableWith(Request other) {
+      return null == this.expected && null == other.expected
+          && this.author.getName().equals(other.author.getName())
+          && this.author.getEmailAddress().equals(other.author.getEmailAddress())
+          && this.committer.getName().equals(other.committer.getName())
+          && this.committer.getEmailAddress().equals(other.committer.getEmailAddress());
+    }
+  }
+
+  /**
+   * Delay (in ms) the leader waits for other requests before committing
+   */
+  private final long window;
+
+  private final String repo;
+
+  private final LinkedList<Request> pending = new LinkedList<Request>();
+
+  private boolean leading = false;
+
+  private GitWriteQueue(String repo, long window) {
+    this.repo = repo;
+    this.window = window;
+  }
+
+  public static GitWriteQueue get(String repo) {
+    GitWriteQueue queue = queues.get(repo);
+
+    if (null == queue) {
+      queues.putIfAbsent(repo, new GitWriteQueue(repo, GitWarpScriptExtension.getWriteWindow()));
+      queue = queues.get(repo);
+    }
+
+    return queue;
+  }
+
+  /**
+   * Commit changes, possibly alongside changes submitted concurrently by other callers.
+   *
+   * @see GitCommitter#commit(Repository, Map, PersonIdent, PersonIdent, String, ObjectId, boolean)
+   */
+  public ObjectId commit(Repository repository, Map<String,byte[]> changes, PersonIdent author, PersonIdent committer, String message, ObjectId expected, boolean rebase) throws IOException {
+    long bytes = message.length();
+
+    for (byte[] content: changes.values()) {
+      bytes += null == content ? 0 : content.length;
+    }
+
+    GitWarpScriptExtension.getMemoryRepositories().check(this.repo, repository, bytes);
+
+    Request request = new Request(changes, author, committer, message, expected, rebase);
+
+    long nanos = System.nanoTime();
+
+    // Interrupts received once our request can no longer be withdrawn are restored before returning
+    boolean interrupted = false;
+
+    synchronized(this) {
+      this.pending.add(request);
+
+      //
+      // Wait until our request is processed or until we become the leader
+      //
+
+      while (!request.done && this.leading) {
+        try {
+          this.wait();
+        } catch (InterruptedException ie) {
+          // Only give up if our request was not yet picked up by the leader
+          if (this.pending.remove(request)) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for write.");
+          }
+          interrupted = true;
+        }
+      }
+
+      GitMetrics.waited(System.nanoTime() - nanos);
+
+      if (request.done) {
+        if (interrupted) {
+          Thread.currentThread().interrupt();
+        }
+        return result(request);
+      }
+
+      this.leading = true;
+    }
+
+    //
+    // We are the leader, process batches until our own request has been committed
+    //
+
+    try {
+      while (!request.done) {
+        if (this.window > 0) {
+          try {
+            Thread.sleep(this.window);
+          } catch (InterruptedException ie) {
+            interrupted = true;
+          }
+        }
+
+        List<Request> batch;
+
+        synchronized(this) {
+          batch = new ArrayList<Request>(this.pending);
+          this.pending.clear();
+        }
+
+        process(repository, batch);
+      }
+    } finally {
+      synchronized(this) {
+        // Hand over leadership to one of the waiting writers
+        this.leading = false;
+        this.notifyAll();
+      }
+    }
+
+    //
+    // Index the commits of the batches outside of the critical section
+    //
+
+    if (GitWarpScriptExtension.usePathIndex()) {
+      try {
+        GitPathIndex.get(this.repo).refresh(repository);
+      } catch (IOException ioe) {
+        // The index will catch up on next use
+      }
+    }
+
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+
+    return result(request);
+  }
+
+  /**
+   * Run a task while no write is in progress on the repository, writes submitted in the
+   * meantime wait for the task to complete.
+   */
+  public void exclusive(Runnable task) throws InterruptedException {
+    synchronized(this) {
+      while (this.leading) {
+        this.wait();
+      }
+      this.leading = true;
+    }
+
+    try {
+      task.run();
+    } finally {
+      synchronized(this) {
+        this.leading = false;
+        this.notifyAll();
+      }
+    }
+  }
+
+  /**
+   * Run a task returning a result while no write is in progress on the repository.
+   *
+   * @see #exclusive(Runnable)
+   */
+  public <T> T exclusive(Callable<T> task) throws Exception {
+    synchronized(this) {
+      while (this.leading) {
+        this.wait();
+      }
+      this.leading = true;
+    }
+
+    try {
+      return task.call();
+    } finally {
+      synchronized(this) {
+        this.leading = false;
+        this.notifyAll();
+      }
+    }
+  }
+
+  private static ObjectId result(Request request) throws IOException {
+    if (null != request.error) {
+      throw request.error;
+    }
+    return request.commit;
+  }
+
+  private void process(Repository repository, List<Request> batch) {
+    try {
+      int idx = 0;
+
+      while (idx < batch.size()) {
+        //
+        // Group consecutive requests with identical author and committer
+        //
+
+        List<Request> group = new ArrayList<Request>();
+        group.add(batch.get(idx++));
+
+        while (idx < batch.size() && batch.get(idx).mergeableWith(group.get(0))) {
+          group.add(batch.get(idx++));
+        }
+
+        commit(repository, group);
+      }
+    } finally {
+      Set<ObjectId> commits = new HashSet<ObjectId>();
+
+      synchronized(this) {
+        for (Request request: batch) {
+          if (null != request.commit) {
+            commits.add(request.commit);
+          }
+          if (!request.processed) {
+            request.error = new IOException("Write request was not processed.");
+          }
+          request.done = true;
+        }
+        this.notifyAll();
+      }
+
+      GitMaintenance.written(this.repo, commits.size());
+
+      if (!commits.isEmpty()) {
+        try {
+          GitWarpScriptExtension.getMemoryRepositories().written(repository);
+        } catch (IOException ioe) {
+          // Packs will be compacted after the next write
+        }
+      }
+
+      if (!commits.isEmpty()) {
+        GitHeadWatcher.get(this.repo).changed();
+      }
+    }
+  }
+
+  private static void commit(Repository repository, List<Request> group) {
+    if (1 == group.size()) {
+      Request request = group.get(0);
+      try {
+        request.commit = GitCommitter.commit(repository, request.changes, request.author, request.committer, request.message, request.expected, request.rebase);
+      } catch (IOException ioe) {
+        request.error = ioe;
+      }
+      request.processed = true;
+      return;
+    }
+
+    Map<String,byte[]> changes = new LinkedHashMap<String,byte[]>();
+    StringBuilder message = new StringBuilder();
+
+    for (Request request: group) {
+      for (Map.Entry<String,byte[]> change: request.changes.entrySet()) {
+        // Move the path at the end so changes are applied in submission order
+        changes.remove(change.getKey());
+        changes.put(change.getKey(), change.getValue());
+      }
+      if (message.length() > 0) {
+        message.append("\n\n");
+      }
+      message.append(request.message);
+    }
+
+    ObjectId commit;
+
+    try {
+      commit = GitCommitter.commit(repository, changes, group.get(0).author, group.get(0).committer, message.toString());
+    } catch (IOException ioe) {
+      //
+      // Commit the requests one by one so only the faulty ones fail
+      //
+      for (Request request: group) {
+        commit(repository, Collections.singletonList(request));
+      }
+      return;
+    }
+
+    //
+    // Requests which did not modify anything get no commit, as if they had been committed alone.
+    // HEAD has already moved, so a request whose check fails keeps the group commit.
+    //
+
+    for (Request request: group) {
+      request.commit = commit;
+      try {
+        if (null != commit && !GitCommitter.modifies(repository, commit, request.changes.keySet())) {
+          request.commit = null;
+        }
+      } catch (IOException ioe) {
+        // The group commit may contain the changes of the request
+      }
+      request.processed = true;
+    }
+  }
+}
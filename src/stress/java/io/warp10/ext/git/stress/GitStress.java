@@ -0,0 +1,599 @@
+//
+//   Copyright 2021  SenX S.A.S.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+package io.warp10.ext.git.stress;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.dircache.DirCache;
+import org.eclipse.jgit.dircache.DirCacheBuilder;
+import org.eclipse.jgit.dircache.DirCacheEditor;
+import org.eclipse.jgit.dircache.DirCacheEntry;
+import org.eclipse.jgit.lib.CommitBuilder;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.FileMode;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.lib.PersonIdent;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.RefUpdate;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.ObjectWalk;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.revwalk.TreeRevFilter;
+import org.eclipse.jgit.revwalk.filter.RevFilter;
+import org.eclipse.jgit.treewalk.TreeWalk;
+import org.eclipse.jgit.treewalk.filter.AndTreeFilter;
+import org.eclipse.jgit.treewalk.filter.PathFilter;
+import org.eclipse.jgit.treewalk.filter.TreeFilter;
+import org.eclipse.jgit.util.FileUtils;
+
+import io.warp10.ext.git.GitPathIndex;
+import io.warp10.ext.git.GitWarpScriptExtension;
+import io.warp10.ext.git.benchmark.BenchStack;
+import io.warp10.ext.git.benchmark.SyntheticRepository;
+import io.warp10.script.WarpScriptStack;
+
+/**
+ * Stress test of the functions, N threads run a random mix of writes (GITSTORE, GITRM, GITTAG) and
+ * reads (GITLOAD, GITFIND, GITLOG) against a single repository for a given duration.
+ *
+ * Each thread only writes below its own directory, so it knows what the content of that directory and
+ * the last commit which modified each of its files must be. Reads check that each thread sees its own
+ * writes. Once all threads are done, the repository is checked: every commit acknowledged to a writer
+ * must be reachable from HEAD, all objects must be present, the content of the files and the tags must
+ * be the expected ones and the path index, reloaded from disk, must agree with a walk of the history.
+ * Merges are then pushed on top of HEAD and GITLOG must return the same commits with and without the
+ * path index.
+ *
+ * Usage: GitStress [threads=8] [duration=30] [files=1000] [blobsize=1024] [window=0]
+ *
+ * The process exits with status 1 if any check failed.
+ */
+public class GitStress {
+
+  private static final String REPO = "stress.git";
+
+  private static final String STORE = "GITSTORE";
+  private static final String RM = "GITRM";
+  private static final String TAG = "GITTAG";
+  private static final String LOAD = "GITLOAD";
+  private static final String FIND = "GITFIND";
+  private static final String LOG = "GITLOG";
+
+  private static final List<String> OPS = Arrays.asList(STORE, RM, TAG, LOAD, FIND, LOG);
+
+  /**
+   * Cumulative probabilities (in %) of each operation, in the order of OPS
+   */
+  private static final int[] MIX = { 35, 50, 55, 75, 85, 100 };
+
+  private static final Map<String,AtomicLong> counts = new ConcurrentHashMap<String,AtomicLong>();
+  private static final Map<String,AtomicLong> nanos = new ConcurrentHashMap<String,AtomicLong>();
+
+  private static final List<String> failures = Collections.synchronizedList(new ArrayList<String>());
+
+  /**
+   * Commits returned to writers
+   */
+  private static final Set<ObjectId> acknowledged = ConcurrentHashMap.newKeySet();
+
+  /**
+   * State of the directory of a writer thread
+   */
+  private static class Writer extends Thread {
+    private final int id;
+    private final long deadline;
+    private final SyntheticRepository synthetic;
+    private final Random random;
+    private final WarpScriptStack stack;
+
+    private final Map<String,byte[]> files = new LinkedHashMap<String,byte[]>();
+    private final Map<String,String> last = new HashMap<String,String>();
+    private final List<String> tags = new ArrayList<String>();
+
+    private int seq = 0;
+
+    private Writer(int id, long deadline, SyntheticRepository synthetic) {
+      this.id = id;
+      this.deadline = deadline;
+      this.synthetic = synthetic;
+      this.random = new Random(id);
+
+      Map<String,String> capabilities = new HashMap<String,String>();
+      capabilities.put(GitWarpScriptExtension.CAP_GITREPO, REPO);
+      // Half of the writers share the same identity so their writes can be grouped
+      capabilities.put(GitWarpScriptExtension.CAP_GITNAME, "writer-" + (id % 2 == 0 ? 0 : id));
+      this.stack = BenchStack.create(capabilities);
+
+      this.setName("[GitStress " + id + "]");
+    }
+
+    private String dir() {
+      return "w" + this.id;
+    }
+
+    private String path() {
+      if (this.files.isEmpty() || this.random.nextInt(4) == 0) {
+        return dir() + "/f" + (this.seq++);
+      }
+      List<String> paths = new ArrayList<String>(this.files.keySet());
+      return paths.get(this.random.nextInt(paths.size()));
+    }
+
+    private Map<Object,Object> params() {
+      Map<Object,Object> params = new HashMap<Object,Object>();
+      params.put(GitWarpScriptExtension.PARAM_REPO, REPO);
+      return params;
+    }
+
+    @Override
+    public void run() {
+      while (System.currentTimeMillis() < this.deadline) {
+        int dice = this.random.nextInt(100);
+        String op = OPS.get(0);
+
+        for (int i = 0; i < MIX.length; i++) {
+          if (dice < MIX[i]) {
+            op = OPS.get(i);
+            break;
+          }
+        }
+
+        // Nothing to read or remove yet
+        if (this.files.isEmpty() && !STORE.equals(op) && !TAG.equals(op)) {
+          op = STORE;
+        }
+
+        long start = System.nanoTime();
+
+        try {
+          apply(op);
+        } catch (Throwable t) {
+          failures.add(getName() + " " + op + " failed: " + t.getMessage());
+        }
+
+        counts.get(op).incrementAndGet();
+        nanos.get(op).addAndGet(System.nanoTime() - start);
+      }
+    }
+
+    private void apply(String op) throws Exception {
+      Map<Object,Object> params = params();
+
+      if (STORE.equals(op)) {
+        String path = path();
+        byte[] content = this.synthetic.content(this.random);
+        params.put(GitWarpScriptExtension.PARAM_PATH, path);
+        params.put(GitWarpScriptExtension.PARAM_CONTENT, content);
+        params.put(GitWarpScriptExtension.PARAM_MESSAGE, "Store " + path);
+        Object commit = BenchStack.call(this.stack, op, params);
+        if (!(commit instanceof String)) {
+          throw new IOException("unexpected result " + commit);
+        }
+        acknowledged.add(ObjectId.fromString((String) commit));
+        this.files.put(path, content);
+        this.last.put(path, (String) commit);
+      } else if (RM.equals(op)) {
+        String path = path();
+        params.put(GitWarpScriptExtension.PARAM_PATH, path);
+        params.put(GitWarpScriptExtension.PARAM_MESSAGE, "Remove " + path);
+        Object commit = BenchStack.call(this.stack, op, params);
+        if (this.files.containsKey(path) != (commit instanceof String)) {
+          throw new IOException("unexpected result " + commit + " removing " + path);
+        }
+        if (commit instanceof String) {
+          acknowledged.add(ObjectId.fromString((String) commit));
+          this.files.remove(path);
+          this.last.put(path, (String) commit);
+        }
+      } else if (TAG.equals(op)) {
+        String tag = "t" + this.id + "-" + this.tags.size();
+        params.put(GitWarpScriptExtension.PARAM_TAG, tag);
+        params.put(GitWarpScriptExtension.PARAM_MESSAGE, "Tag " + tag);
+        BenchStack.call(this.stack, op, params);
+        this.tags.add(tag);
+      } else if (LOAD.equals(op)) {
+        String path = path();
+        params.put(GitWarpScriptExtension.PARAM_PATH, path);
+        Object content = BenchStack.call(this.stack, op, params);
+        byte[] expected = this.files.get(path);
+        if (null == expected ? null != content : !(content instanceof byte[]) || !Arrays.equals(expected, (byte[]) content)) {
+          throw new IOException("unexpected content of " + path);
+        }
+      } else if (FIND.equals(op)) {
+        params.put(GitWarpScriptExtension.PARAM_REGEXP, dir() + "/.*");
+        Object paths = BenchStack.call(this.stack, op, params);
+        if (!(paths instanceof List) || !new HashSet<Object>((List) paths).equals(this.files.keySet())) {
+          throw new IOException("unexpected files in " + dir());
+        }
+      } else if (LOG.equals(op)) {
+        String path = path();
+        params.put(GitWarpScriptExtension.PARAM_PATH, path);
+        params.put(GitWarpScriptExtension.PARAM_COUNT, 1L);
+        List<Object> entries = (List<Object>) BenchStack.call(this.stack, op, params);
+        Object rev = entries.isEmpty() ? null : ((Map<Object,Object>) entries.get(0)).get(GitWarpScriptExtension.INFOS_REV);
+        if (null == this.last.get(path) ? null != rev : !this.last.get(path).equals(rev)) {
+          throw new IOException("unexpected last commit " + rev + " of " + path);
+        }
+      }
+    }
+  }
+
+  public static void main(String[] args) throws Exception {
+    int threads = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+    int duration = args.length > 1 ? Integer.parseInt(args[1]) : 30;
+    int nfiles = args.length > 2 ? Integer.parseInt(args[2]) : 1000;
+    int blobsize = args.length > 3 ? Integer.parseInt(args[3]) : 1024;
+    int window = args.length > 4 ? Integer.parseInt(args[4]) : 0;
+
+    File root = Files.createTempDirectory("warp10-ext-git-stress").toFile();
+
+    try {
+      Map<String,String> conf = new HashMap<String,String>();
+      conf.put(GitWarpScriptExtension.CONF_WRITE_WINDOW, Integer.toString(window));
+      BenchStack.configure(root, conf);
+
+      SyntheticRepository synthetic = new SyntheticRepository(nfiles, 2, 1, 0, blobsize, 0L);
+      synthetic.create(new File(root, REPO));
+
+      for (String op: OPS) {
+        counts.put(op, new AtomicLong(0L));
+        nanos.put(op, new AtomicLong(0L));
+      }
+
+      System.out.println("Running " + threads + " threads for " + duration + "s on " + nfiles + " files of " + blobsize + " bytes, write window " + window + "ms.");
+
+      long start = System.currentTimeMillis();
+      long deadline = start + duration * 1000L;
+
+      List<Writer> writers = new ArrayList<Writer>();
+
+      for (int i = 0; i < threads; i++) {
+        writers.add(new Writer(i, deadline, synthetic));
+      }
+
+      for (Writer writer: writers) {
+        writer.start();
+      }
+
+      for (Writer writer: writers) {
+        writer.join();
+      }
+
+      long elapsed = System.currentTimeMillis() - start;
+
+      report(elapsed);
+
+      try (Git git = Git.open(new File(root, REPO))) {
+        check(git.getRepository(), writers);
+      }
+
+      //
+      // Reload the path index from disk under another name and compare it with a walk of the history
+      //
+
+      File copy = new File(root, "copy.git");
+      copy(new File(root, REPO), copy);
+
+      try (Git git = Git.open(copy)) {
+        checkIndex(git.getRepository(), new File(copy, GitPathIndex.DIRECTORY), writers);
+      }
+
+      try (Git git = Git.open(new File(root, REPO))) {
+        checkMerges(git.getRepository(), writers);
+      }
+    } finally {
+      FileUtils.delete(root, FileUtils.RECURSIVE | FileUtils.IGNORE_ERRORS);
+    }
+
+    if (failures.isEmpty()) {
+      System.out.println("OK");
+      System.exit(0);
+    }
+
+    for (String failure: failures.subList(0, Math.min(100, failures.size()))) {
+      System.out.println(failure);
+    }
+
+    System.out.println("FAILED, " + failures.size() + " failure(s)");
+    System.exit(1);
+  }
+
+  private static void report(long elapsed) {
+    long total = 0L;
+
+    for (String op: OPS) {
+      long count = counts.get(op).get();
+      total += count;
+      double latency = 0 == count ? 0.0D : nanos.get(op).get() / 1000000.0D / count;
+      System.out.println(String.format("%-10s %10d ops %10.1f ops/s %10.3f ms/op", op, count, count * 1000.0D / elapsed, latency));
+    }
+
+    System.out.println(String.format("%-10s %10d ops %10.1f ops/s", "TOTAL", total, total * 1000.0D / elapsed));
+    System.out.println(acknowledged.size() + " distinct commits acknowledged.");
+  }
+
+  private static void check(Repository repository, List<Writer> writers) throws IOException {
+    ObjectId head = repository.resolve(Constants.HEAD);
+
+    //
+    // No acknowledged commit was lost and all objects reachable from HEAD and the tags are present
+    //
+
+    Set<ObjectId> reachable = new HashSet<ObjectId>();
+
+    try (ObjectWalk owalk = new ObjectWalk(repository)) {
+      owalk.markStart(owalk.parseCommit(head));
+
+      for (Ref ref: repository.getRefDatabase().getRefsByPrefix(Constants.R_TAGS)) {
+        owalk.markStart(owalk.parseAny(ref.getObjectId()));
+      }
+
+      RevCommit commit;
+      while (null != (commit = owalk.next())) {
+        reachable.add(commit.copy());
+      }
+
+      // Throws if an object is missing
+      owalk.checkConnectivity();
+    } catch (IOException ioe) {
+      failures.add("repository is not connected: " + ioe.getMessage());
+    }
+
+    for (ObjectId commit: acknowledged) {
+      if (!reachable.contains(commit)) {
+        failures.add("acknowledged commit " + commit.name() + " is not reachable from HEAD");
+      }
+    }
+
+    //
+    // The final content of each writer directory and its tags are the expected ones
+    //
+
+    try (RevWalk rwalk = new RevWalk(repository)) {
+      RevCommit commit = rwalk.parseCommit(head);
+
+      for (Writer writer: writers) {
+        Set<String> found = new HashSet<String>();
+
+        try (TreeWalk twalk = new TreeWalk(repository)) {
+          twalk.addTree(commit.getTree());
+          twalk.setRecursive(true);
+          twalk.setFilter(PathFilter.create(writer.dir()));
+
+          while (twalk.next()) {
+            found.add(twalk.getPathString());
+            byte[] expected = writer.files.get(twalk.getPathString());
+            if (null == expected || !Arrays.equals(expected, repository.open(twalk.getObjectId(0)).getBytes())) {
+              failures.add("unexpected content of " + twalk.getPathString());
+            }
+          }
+        }
+
+        if (!found.equals(writer.files.keySet())) {
+          failures.add("unexpected files in " + writer.dir());
+        }
+
+        for (String tag: writer.tags) {
+          if (null == repository.exactRef(Constants.R_TAGS + tag)) {
+            failures.add("missing tag " + tag);
+          }
+        }
+      }
+    }
+  }
+
+  private static void checkIndex(Repository repository, File dir, List<Writer> writers) throws IOException {
+    File file = new File(dir, "paths.idx");
+    long length = file.length();
+
+    GitPathIndex index = GitPathIndex.get("copy.git");
+
+    for (Writer writer: writers) {
+      for (String path: writer.last.keySet()) {
+        List<ObjectId> indexed = index.log(repository, Collections.singletonList(path), null, null);
+
+        List<ObjectId> walked = new ArrayList<ObjectId>();
+
+        try (RevWalk rwalk = new RevWalk(repository)) {
+          rwalk.markStart(rwalk.parseCommit(repository.resolve(Constants.HEAD)));
+          RevFilter filter = new TreeRevFilter(rwalk, AndTreeFilter.create(PathFilter.create(path), TreeFilter.ANY_DIFF));
+          rwalk.setRevFilter(filter);
+          rwalk.setRewriteParents(false);
+          for (RevCommit commit: rwalk) {
+            walked.add(commit.copy());
+          }
+        }
+
+        if (null == indexed || !walked.equals(indexed)) {
+          failures.add("path index disagrees with the history of " + path);
+        }
+
+        if (null != indexed && !indexed.isEmpty() && !indexed.get(0).name().equals(writer.last.get(path))) {
+          // The most recent commit of the path is the last one acknowledged to its writer
+          failures.add("path index returns " + indexed.get(0).name() + " as last commit of " + path + " instead of " + writer.last.get(path));
+        }
+      }
+    }
+
+    if (file.length() < length) {
+      failures.add("path index file was truncated when reloaded, it contained an invalid record");
+    }
+  }
+
+  /**
+   * Push merges on top of HEAD, as another process would, and check that GITLOG returns the same
+   * commits with the path index as with a walk of the history, which simplifies it at merges
+   */
+  private static void checkMerges(Repository repository, List<Writer> writers) throws Exception {
+    String path = null;
+
+    for (Writer writer: writers) {
+      if (!writer.files.isEmpty()) {
+        path = writer.files.keySet().iterator().next();
+        break;
+      }
+    }
+
+    if (null == path) {
+      return;
+    }
+
+    try (ObjectInserter inserter = repository.newObjectInserter(); RevWalk rwalk = new RevWalk(repository)) {
+      RevCommit head = rwalk.parseCommit(repository.resolve(Constants.HEAD));
+      RevCommit base = head;
+
+      for (int i = 0; i < 20 && base.getParentCount() > 0; i++) {
+        base = rwalk.parseCommit(base.getParent(0));
+      }
+
+      //
+      // A side branch modifies a file then reverts it, it is merged keeping the tree of HEAD so the
+      // walk does not follow it. Another one adds files, it is merged with them.
+      //
+
+      ObjectId side = commit(inserter, tree(repository, inserter, base.getTree(), path, "side".getBytes(StandardCharsets.UTF_8)), "Side change", base);
+      side = commit(inserter, base.getTree(), "Side revert", side);
+      ObjectId merge = commit(inserter, head.getTree(), "Merge keeping HEAD", head, side);
+
+      ObjectId added = commit(inserter, tree(repository, inserter, base.getTree(), "merged/a", "a".getBytes(StandardCharsets.UTF_8)), "Side add", base);
+      merge = commit(inserter, tree(repository, inserter, head.getTree(), "merged/a", "a".getBytes(StandardCharsets.UTF_8)), "Merge adding files", merge, added);
+
+      inserter.flush();
+
+      RefUpdate ru = repository.updateRef(Constants.HEAD);
+      ru.setNewObjectId(merge);
+      ru.setExpectedOldObjectId(head);
+      RefUpdate.Result result = ru.update(rwalk);
+
+      if (RefUpdate.Result.FAST_FORWARD != result) {
+        failures.add("unable to push merges: " + result);
+        return;
+      }
+    }
+
+    Map<String,String> capabilities = new HashMap<String,String>();
+    capabilities.put(GitWarpScriptExtension.CAP_GITREPO, REPO);
+    WarpScriptStack stack = BenchStack.create(capabilities);
+
+    List<String> paths = new ArrayList<String>();
+    paths.add(path);
+    paths.add(path.substring(0, path.indexOf('/')));
+    paths.add("merged");
+    paths.add("merged/a");
+
+    for (String p: paths) {
+      Map<Object,Object> params = new HashMap<Object,Object>();
+      params.put(GitWarpScriptExtension.PARAM_REPO, REPO);
+      params.put(GitWarpScriptExtension.PARAM_PATH, p);
+      List<Object> indexed = revs((List<Object>) BenchStack.call(stack, LOG, params));
+
+      // Using a cursor always walks the history
+      params.put(GitWarpScriptExtension.PARAM_CURSOR, null);
+      List<Object> walked = revs((List<Object>) ((Map<Object,Object>) BenchStack.call(stack, LOG, params)).get(GitWarpScriptExtension.INFOS_ENTRIES));
+
+      if (!walked.equals(indexed)) {
+        failures.add("GITLOG of " + p + " differs with and without the path index after merges");
+      }
+    }
+  }
+
+  /**
+   * Return the commit ids of GITLOG entries, the tags are ignored
+   */
+  private static List<Object> revs(List<Object> entries) {
+    List<Object> revs = new ArrayList<Object>();
+
+    for (Object entry: entries) {
+      Map<Object,Object> infos = (Map<Object,Object>) entry;
+      if (Constants.TYPE_COMMIT.equals(infos.get(GitWarpScriptExtension.INFOS_TYPE))) {
+        revs.add(infos.get(GitWarpScriptExtension.INFOS_REV));
+      }
+    }
+
+    return revs;
+  }
+
+  /**
+   * Return the id of 'tree' with the content of 'path' replaced
+   */
+  private static ObjectId tree(Repository repository, ObjectInserter inserter, ObjectId tree, String path, byte[] content) throws IOException {
+    final ObjectId blob = inserter.insert(Constants.OBJ_BLOB, content);
+
+    DirCache dc = DirCache.newInCore();
+    DirCacheBuilder builder = dc.builder();
+
+    try (ObjectReader reader = repository.newObjectReader()) {
+      builder.addTree(new byte[0], DirCacheEntry.STAGE_0, reader, tree);
+    }
+
+    builder.finish();
+
+    DirCacheEditor editor = dc.editor();
+    editor.add(new DirCacheEditor.PathEdit(path) {
+      @Override
+      public void apply(DirCacheEntry entry) {
+        entry.setFileMode(FileMode.REGULAR_FILE);
+        entry.setObjectId(blob);
+      }
+    });
+    editor.finish();
+
+    return dc.writeTree(inserter);
+  }
+
+  private static ObjectId commit(ObjectInserter inserter, ObjectId tree, String message, ObjectId... parents) throws IOException {
+    PersonIdent person = new PersonIdent("merger", "merger@localhost");
+
+    CommitBuilder cb = new CommitBuilder();
+    cb.setTreeId(tree);
+    cb.setParentIds(parents);
+    cb.setAuthor(person);
+    cb.setCommitter(person);
+    cb.setMessage(message);
+
+    return inserter.insert(cb);
+  }
+
+  private static void copy(File from, File to) throws IOException {
+    if (from.isDirectory()) {
+      to.mkdirs();
+      for (File child: from.listFiles()) {
+        copy(child, new File(to, child.getName()));
+      }
+    } else {
+      Files.copy(from.toPath(), to.toPath());
+    }
+  }
+}
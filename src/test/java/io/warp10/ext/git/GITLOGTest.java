@@ -0,0 +1,181 @@
+//
+//   Copyright 2021  SenX S.A.S.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.ext.git;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Repository;
+import org.junit.Test;
+
+import io.warp10.ext.git.benchmark.BenchStack;
+import io.warp10.script.WarpScriptException;
+import io.warp10.script.WarpScriptStack;
+
+public class GITLOGTest {
+
+  @Test
+  public void testCursor() throws Exception {
+    Repository repository = GitTests.create("cursor.git");
+
+    try {
+      //
+      // Linear history, then a side branch modifying 'a' merged back
+      //
+
+      Map<String,String> files = GitTests.files("a", "0", "b", "0");
+      ObjectId head = GitTests.commit(repository, files, 100L);
+
+      for (int i = 1; i < 10; i++) {
+        files.put(0 == i % 2 ? "a" : "b", Integer.toString(i));
+        head = GitTests.commit(repository, files, 100L + i, head);
+      }
+
+      GitTests.head(repository, head);
+
+      WarpScriptStack stack = BenchStack.create(capabilities("cursor.git"));
+
+      check(stack, "cursor.git", null);
+      check(stack, "cursor.git", "a");
+
+      Map<String,String> side = new HashMap<String,String>(files);
+      side.put("a", "side");
+      ObjectId branch = GitTests.commit(repository, side, 110L, head);
+
+      files.put("b", "main");
+      head = GitTests.commit(repository, files, 111L, head);
+      files.put("a", "side");
+      head = GitTests.commit(repository, files, 112L, head, branch);
+
+      for (int i = 13; i < 16; i++) {
+        files.put(0 == i % 2 ? "a" : "b", Integer.toString(i));
+        head = GitTests.commit(repository, files, 100L + i, head);
+      }
+
+      GitTests.head(repository, head);
+
+      assertTrue(revs(BenchStack.call(stack, GitWarpScriptExtension.GITLOG, params("cursor.git", "a", null))).contains(branch.name()));
+
+      check(stack, "cursor.git", null);
+      check(stack, "cursor.git", "a");
+      check(stack, "cursor.git", "b");
+    } finally {
+      repository.close();
+    }
+  }
+
+  @Test
+  public void testInvalidCursor() throws Exception {
+    Repository repository = GitTests.create("invalid.git");
+
+    try {
+      GitTests.head(repository, GitTests.commit(repository, GitTests.files("a", "0"), 100L));
+
+      WarpScriptStack stack = BenchStack.create(capabilities("invalid.git"));
+
+      for (String cursor: new String[] { "", "xyz", ObjectId.zeroId().name() + ".", repository.resolve(Constants.HEAD).name() + ".xyz" }) {
+        Map<Object,Object> params = params("invalid.git", null, null);
+        params.put(GitWarpScriptExtension.PARAM_CURSOR, cursor);
+
+        try {
+          BenchStack.call(stack, GitWarpScriptExtension.GITLOG, params);
+          fail("Cursor '" + cursor + "' was accepted.");
+        } catch (WarpScriptException wse) {
+          // Expected
+        }
+      }
+    } finally {
+      repository.close();
+    }
+  }
+
+  /**
+   * Check that reading the log page by page with cursors returns the same commits as reading it at once
+   */
+  private static void check(WarpScriptStack stack, String repo, String path) throws WarpScriptException {
+    List<String> expected = revs(BenchStack.call(stack, GitWarpScriptExtension.GITLOG, params(repo, path, null)));
+
+    for (long count = 1; count <= 4; count++) {
+      List<String> paged = new ArrayList<String>();
+      String cursor = null;
+
+      do {
+        Map<Object,Object> params = params(repo, path, count);
+        params.put(GitWarpScriptExtension.PARAM_CURSOR, cursor);
+
+        Map<Object,Object> page = (Map<Object,Object>) BenchStack.call(stack, GitWarpScriptExtension.GITLOG, params);
+        List<String> revs = revs(page.get(GitWarpScriptExtension.INFOS_ENTRIES));
+
+        assertTrue(revs.size() <= count);
+
+        paged.addAll(revs);
+        cursor = (String) page.get(GitWarpScriptExtension.INFOS_CURSOR);
+
+        if (null != cursor && revs.isEmpty()) {
+          fail("Empty page with a cursor.");
+        }
+      } while (null != cursor && paged.size() <= expected.size());
+
+      assertNull(cursor);
+      assertEquals("Log of " + path + " by pages of " + count, expected, paged);
+    }
+  }
+
+  private static Map<String,String> capabilities(String repo) {
+    Map<String,String> capabilities = new HashMap<String,String>();
+    capabilities.put(GitWarpScriptExtension.CAP_GITREPO, repo);
+    return capabilities;
+  }
+
+  private static Map<Object,Object> params(String repo, String path, Long count) {
+    Map<Object,Object> params = new HashMap<Object,Object>();
+    params.put(GitWarpScriptExtension.PARAM_REPO, repo);
+    if (null != path) {
+      params.put(GitWarpScriptExtension.PARAM_PATH, path);
+    }
+    if (null != count) {
+      params.put(GitWarpScriptExtension.PARAM_COUNT, count);
+    }
+    return params;
+  }
+
+  /**
+   * Return the commit ids of GITLOG entries, the tags are ignored
+   */
+  private static List<String> revs(Object entries) {
+    List<String> revs = new ArrayList<String>();
+
+    for (Object entry: (List<Object>) entries) {
+      Map<Object,Object> infos = (Map<Object,Object>) entry;
+      if (Constants.TYPE_COMMIT.equals(infos.get(GitWarpScriptExtension.INFOS_TYPE))) {
+        revs.add((String) infos.get(GitWarpScriptExtension.INFOS_REV));
+      }
+    }
+
+    return revs;
+  }
+}
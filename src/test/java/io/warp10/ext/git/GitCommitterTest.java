@@ -0,0 +1,169 @@
+//
+//   Copyright 2021  SenX S.A.S.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.ext.git;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Repository;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class GitCommitterTest {
+
+  private Repository repository;
+
+  @Before
+  public void setUp() throws IOException {
+    this.repository = GitTests.create("committer.git");
+  }
+
+  @After
+  public void tearDown() {
+    this.repository.close();
+  }
+
+  private ObjectId commit(String... changes) throws IOException {
+    Map<String,byte[]> map = new LinkedHashMap<String,byte[]>();
+
+    for (int i = 0; i < changes.length; i += 2) {
+      map.put(changes[i], null == changes[i + 1] ? null : changes[i + 1].getBytes(StandardCharsets.UTF_8));
+    }
+
+    return GitCommitter.commit(this.repository, map, GitTests.AUTHOR, GitTests.AUTHOR, "test");
+  }
+
+  @Test
+  public void testEdits() throws IOException {
+    ObjectId first = commit("a/b/c", "1", "a/d", "2", "e", "3");
+
+    assertNotNull(first);
+    assertEquals(first, this.repository.resolve(Constants.HEAD));
+
+    ObjectId second = commit("a/b/c", "4");
+
+    assertEquals(first, this.repository.parseCommit(second).getParent(0));
+    assertEquals("4", GitTests.read(this.repository, second, "a/b/c"));
+    // Trees which are not along the modified paths are left as is
+    assertEquals("2", GitTests.read(this.repository, second, "a/d"));
+    assertEquals(this.repository.resolve(first.name() + ":e"), this.repository.resolve(second.name() + ":e"));
+  }
+
+  @Test
+  public void testDelete() throws IOException {
+    commit("a/b/c", "1", "a/d", "2");
+
+    // Removing the last file of a directory removes the directory
+    ObjectId commit = commit("a/b/c", null);
+
+    assertNull(this.repository.resolve(commit.name() + ":a/b"));
+    assertEquals("2", GitTests.read(this.repository, commit, "a/d"));
+
+    // Removing a directory removes all the files below it
+    commit = commit("a", null);
+
+    assertNull(this.repository.resolve(commit.name() + ":a"));
+  }
+
+  @Test
+  public void testReplace() throws IOException {
+    commit("a", "1", "b/c", "2");
+
+    // A directory replaces a file which was removed in the same commit
+    ObjectId commit = commit("a", null, "a/d", "3");
+
+    assertEquals("3", GitTests.read(this.repository, commit, "a/d"));
+
+    // The content of a directory removed in the same commit is discarded
+    commit = commit("b", null, "b/e", "4");
+
+    assertNull(GitTests.read(this.repository, commit, "b/c"));
+    assertEquals("4", GitTests.read(this.repository, commit, "b/e"));
+  }
+
+  @Test
+  public void testNoop() throws IOException {
+    ObjectId first = commit("a", "1");
+
+    assertNull(commit("a", "1"));
+    assertNull(commit("b", null));
+    assertEquals(first, this.repository.resolve(Constants.HEAD));
+  }
+
+  @Test
+  public void testInvalidPaths() throws IOException {
+    commit("a/b", "1");
+
+    for (String path: new String[] { "", "/a", "a/", "a//b", "./a", "a/../b", ".git/config", "a/.git" }) {
+      try {
+        commit(path, "2");
+        fail("Path '" + path + "' was accepted.");
+      } catch (IOException ioe) {
+        // Expected
+      }
+    }
+
+    // Writing a file over a directory is rejected
+    try {
+      commit("a", "2");
+      fail("A directory was overwritten by a file.");
+    } catch (IOException ioe) {
+      // Expected
+    }
+  }
+
+  @Test
+  public void testConflict() throws IOException {
+    ObjectId first = commit("a", "1", "b", "1");
+    ObjectId second = commit("a", "2");
+
+    try {
+      GitCommitter.commit(this.repository, changes("a", "3"), GitTests.AUTHOR, GitTests.AUTHOR, "test", first, true);
+      fail("Conflicting changes were rebased.");
+    } catch (GitConflictException gce) {
+      // Expected
+    }
+
+    // Changes to paths which were not modified since the expected parent are rebased
+    ObjectId rebased = GitCommitter.commit(this.repository, changes("b", "3"), GitTests.AUTHOR, GitTests.AUTHOR, "test", first, true);
+
+    assertEquals(second, this.repository.parseCommit(rebased).getParent(0));
+    assertEquals("2", GitTests.read(this.repository, rebased, "a"));
+    assertEquals("3", GitTests.read(this.repository, rebased, "b"));
+
+    assertTrue(GitCommitter.modifies(this.repository, rebased, changes("b", null).keySet()));
+    assertFalse(GitCommitter.modifies(this.repository, rebased, changes("a", null).keySet()));
+  }
+
+  private static Map<String,byte[]> changes(String path, String content) {
+    Map<String,byte[]> changes = new LinkedHashMap<String,byte[]>();
+    changes.put(path, null == content ? null : content.getBytes(StandardCharsets.UTF_8));
+    return changes;
+  }
+}
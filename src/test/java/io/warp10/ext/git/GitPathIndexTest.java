@@ -0,0 +1,184 @@
+//
+//   Copyright 2021  SenX S.A.S.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.ext.git;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.revwalk.TreeRevFilter;
+import org.eclipse.jgit.revwalk.filter.AndRevFilter;
+import org.eclipse.jgit.revwalk.filter.CommitTimeRevFilter;
+import org.eclipse.jgit.revwalk.filter.RevFilter;
+import org.eclipse.jgit.treewalk.filter.AndTreeFilter;
+import org.eclipse.jgit.treewalk.filter.TreeFilter;
+import org.junit.Test;
+
+public class GitPathIndexTest {
+
+  private static final List<List<String>> PATHS = Arrays.asList(
+      Collections.singletonList("a"),
+      Collections.singletonList("b"),
+      Collections.singletonList("b/c"),
+      Collections.singletonList("m"),
+      Arrays.asList("a", "b/c"));
+
+  @Test
+  public void testLinear() throws IOException {
+    Repository repository = GitTests.create("linear.git");
+    GitPathIndex.forget("linear.git");
+
+    try {
+      Map<String,String> files = GitTests.files("a", "0", "b/c", "0", "b/d", "0");
+      ObjectId head = GitTests.commit(repository, files, 100L);
+
+      for (int i = 1; i < 10; i++) {
+        files.put(0 == i % 3 ? "a" : (1 == i % 3 ? "b/c" : "b/d"), Integer.toString(i));
+        head = GitTests.commit(repository, files, 100L + i, head);
+      }
+
+      GitTests.head(repository, head);
+
+      GitPathIndex index = GitPathIndex.get("linear.git");
+
+      for (List<String> paths: PATHS) {
+        assertNotNull(check(index, repository, paths, null));
+        assertNotNull(check(index, repository, paths, 105000L));
+      }
+
+      // The index catches up with commits it did not see
+      files.put("a", "10");
+      head = GitTests.commit(repository, files, 110L, head);
+      GitTests.head(repository, head);
+
+      assertEquals(head, check(index, repository, PATHS.get(0), null).get(0));
+    } finally {
+      repository.close();
+    }
+  }
+
+  @Test
+  public void testMerges() throws IOException {
+    Repository repository = GitTests.create("merges.git");
+    GitPathIndex.forget("merges.git");
+
+    try {
+      Map<String,String> files = GitTests.files("a", "0", "b/c", "0");
+      ObjectId head = GitTests.commit(repository, files, 100L);
+
+      for (int i = 1; i < 5; i++) {
+        files.put(0 == i % 2 ? "a" : "b/c", Integer.toString(i));
+        head = GitTests.commit(repository, files, 100L + i, head);
+      }
+
+      ObjectId base = head;
+
+      //
+      // A side branch modifies 'a' then reverts it, it is merged keeping the tree of HEAD so the
+      // walk does not follow it. Another one adds 'm', it is merged with it.
+      //
+
+      Map<String,String> side = GitTests.files("a", "side", "b/c", files.get("b/c"));
+      ObjectId modified = GitTests.commit(repository, side, 105L, base);
+      ObjectId reverted = GitTests.commit(repository, files, 106L, modified);
+
+      files.put("b/c", "5");
+      head = GitTests.commit(repository, files, 107L, head);
+      head = GitTests.commit(repository, files, 108L, head, reverted);
+
+      Map<String,String> added = GitTests.files("a", GitTests.read(repository, base, "a"), "b/c", GitTests.read(repository, base, "b/c"), "m", "m");
+      ObjectId branch = GitTests.commit(repository, added, 109L, base);
+      files.put("m", "m");
+      head = GitTests.commit(repository, files, 110L, head, branch);
+
+      for (int i = 11; i < 15; i++) {
+        files.put(0 == i % 2 ? "a" : "b/c", Integer.toString(i));
+        head = GitTests.commit(repository, files, 100L + i, head);
+      }
+
+      GitTests.head(repository, head);
+
+      GitPathIndex index = GitPathIndex.get("merges.git");
+
+      for (List<String> paths: PATHS) {
+        // Walks reaching a merge are not answered by the index
+        assertNull(check(index, repository, paths, null));
+        assertNull(check(index, repository, paths, 108000L));
+        assertNotNull(check(index, repository, paths, 111000L));
+      }
+
+      // The walk does not follow the side branch which modified 'a'
+      assertFalse(walk(repository, PATHS.get(0), null).contains(modified));
+    } finally {
+      repository.close();
+    }
+  }
+
+  /**
+   * Check that the index returns the same commits as a walk of the history, if it answers
+   *
+   * @return The commits returned by the index, or null if it did not answer
+   */
+  private static List<ObjectId> check(GitPathIndex index, Repository repository, List<String> paths, Long since) throws IOException {
+    List<ObjectId> indexed = index.log(repository, paths, since, null);
+
+    if (null != indexed) {
+      assertEquals("Index of " + paths + " since " + since, walk(repository, paths, since), indexed);
+    }
+
+    return indexed;
+  }
+
+  /**
+   * Walk the history from HEAD as GITLOG does
+   */
+  private static List<ObjectId> walk(Repository repository, List<String> paths, Long since) throws IOException {
+    List<ObjectId> commits = new ArrayList<ObjectId>();
+
+    try (RevWalk rwalk = new RevWalk(repository)) {
+      rwalk.markStart(rwalk.parseCommit(repository.resolve(Constants.HEAD)));
+
+      RevFilter filter = new TreeRevFilter(rwalk, AndTreeFilter.create(new GitPathTreeFilter(paths), TreeFilter.ANY_DIFF));
+
+      if (null != since) {
+        filter = AndRevFilter.create(CommitTimeRevFilter.after(since), filter);
+      }
+
+      rwalk.setRevFilter(filter);
+      rwalk.setRewriteParents(false);
+
+      for (RevCommit commit: rwalk) {
+        commits.add(commit.copy());
+      }
+    }
+
+    return commits;
+  }
+}
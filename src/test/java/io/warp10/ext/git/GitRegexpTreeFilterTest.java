@@ -0,0 +1,108 @@
+//
+//   Copyright 2021  SenX S.A.S.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.ext.git;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.treewalk.TreeWalk;
+import org.eclipse.jgit.treewalk.filter.TreeFilter;
+import org.junit.Test;
+
+public class GitRegexpTreeFilterTest {
+
+  @Test
+  public void testPrefix() {
+    assertEquals("a/b", GitRegexpTreeFilter.prefix("a/b/.*"));
+    assertEquals("a/b", GitRegexpTreeFilter.prefix("^a/b/c.*"));
+    assertEquals("a", GitRegexpTreeFilter.prefix("a/b[0-9]/.*"));
+    assertEquals("a.b/c", GitRegexpTreeFilter.prefix("a\\.b/c/d"));
+    assertEquals("a.b", GitRegexpTreeFilter.prefix("\\Qa.b\\E/.*"));
+
+    // A quantifier applies to the last literal character
+    assertEquals("a", GitRegexpTreeFilter.prefix("a/b/?c"));
+    assertNull(GitRegexpTreeFilter.prefix("a/?b"));
+
+    // No literal directory
+    assertNull(GitRegexpTreeFilter.prefix(".*/a"));
+    assertNull(GitRegexpTreeFilter.prefix("a.*"));
+    assertNull(GitRegexpTreeFilter.prefix("\\w/a"));
+    assertNull(GitRegexpTreeFilter.prefix("/a/b"));
+    assertNull(GitRegexpTreeFilter.prefix("a//b/c"));
+
+    // Alternatives could match outside of the prefix
+    assertNull(GitRegexpTreeFilter.prefix("a/b/c|d/e"));
+  }
+
+  @Test
+  public void testScope() {
+    assertEquals("\\Qs\\E/(?:a|b)", GitRegexpTreeFilter.scope("a|b", "s"));
+    assertEquals("^\\Qs\\E/(?:a)", GitRegexpTreeFilter.scope("^a", "s"));
+    assertEquals("\\Qs\\E/.*", GitRegexpTreeFilter.scope(null, "s"));
+    assertEquals("a", GitRegexpTreeFilter.scope("a", null));
+  }
+
+  @Test
+  public void testPruning() throws IOException {
+    Repository repository = GitTests.create("regexp.git");
+
+    try {
+      ObjectId commit = GitTests.commit(repository, GitTests.files("a/x.mc2", "", "a/y.txt", "", "a/b/z.mc2", "", "ab/x.mc2", "", "c/x.mc2", ""), 1L);
+
+      assertEquals(Arrays.asList("a", "a/b", "a/b/z.mc2", "a/x.mc2"), walk(repository, commit, new GitRegexpTreeFilter("a/.*\\.mc2")));
+      assertEquals(Arrays.asList("a", "a/x.mc2"), walk(repository, commit, new GitRegexpTreeFilter("a/[^/]*\\.mc2")));
+      assertEquals(Arrays.asList("a", "a/b", "a/b/z.mc2"), walk(repository, commit, new GitRegexpTreeFilter("a/b/.*")));
+
+      // With a literal directory the other subtrees are not even evaluated against the regular expression
+      assertEquals(Arrays.asList("a", "a/b", "a/b/z.mc2"), walk(repository, commit, GitRegexpTreeFilter.create("a/b/.*")));
+      assertEquals(Arrays.asList("c", "c/x.mc2"), walk(repository, commit, GitRegexpTreeFilter.create(GitRegexpTreeFilter.scope("x.*", "c"), "c")));
+    } finally {
+      repository.close();
+    }
+  }
+
+  /**
+   * Walk the tree of a commit, only entering the subtrees the filter includes
+   *
+   * @return The paths of the included subtrees and files
+   */
+  private static List<String> walk(Repository repository, ObjectId commit, TreeFilter filter) throws IOException {
+    List<String> paths = new ArrayList<String>();
+
+    try (RevWalk rwalk = new RevWalk(repository); TreeWalk twalk = new TreeWalk(repository)) {
+      twalk.addTree(rwalk.parseCommit(commit).getTree());
+      twalk.setFilter(filter);
+
+      while (twalk.next()) {
+        paths.add(twalk.getPathString());
+        if (twalk.isSubtree()) {
+          twalk.enterSubtree();
+        }
+      }
+    }
+
+    return paths;
+  }
+}
@@ -0,0 +1,184 @@
+//
+//   Copyright 2021  SenX S.A.S.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.ext.git;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TimeZone;
+
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.api.errors.GitAPIException;
+import org.eclipse.jgit.dircache.DirCache;
+import org.eclipse.jgit.dircache.DirCacheBuilder;
+import org.eclipse.jgit.dircache.DirCacheEntry;
+import org.eclipse.jgit.lib.CommitBuilder;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.FileMode;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
+import org.eclipse.jgit.lib.PersonIdent;
+import org.eclipse.jgit.lib.RefUpdate;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.treewalk.TreeWalk;
+
+import io.warp10.ext.git.benchmark.BenchStack;
+import io.warp10.ext.git.benchmark.SyntheticRepository;
+
+/**
+ * Repositories shared by the tests.
+ *
+ * The extension reads its configuration when it is first loaded, so Warp 10 is configured once per
+ * JVM, with a temporary directory as git.root, before any test uses the repositories.
+ */
+public class GitTests {
+
+  public static final PersonIdent AUTHOR = new PersonIdent("test", "test@localhost");
+
+  private static File root = null;
+
+  /**
+   * Configure Warp 10 if needed and return the directory used as git.root
+   */
+  public static synchronized File root() throws IOException {
+    if (null == root) {
+      final File dir = Files.createTempDirectory("warp10-ext-git-test").toFile();
+
+      BenchStack.configure(dir, new HashMap<String,String>());
+
+      Runtime.getRuntime().addShutdownHook(new Thread() {
+        @Override
+        public void run() {
+          SyntheticRepository.delete(dir);
+        }
+      });
+
+      root = dir;
+    }
+
+    return root;
+  }
+
+  /**
+   * Create an empty bare repository under git.root
+   */
+  public static Repository create(String name) throws IOException {
+    File dir = new File(root(), name);
+
+    if (dir.exists()) {
+      SyntheticRepository.delete(dir);
+    }
+
+    try (Git git = Git.init().setBare(true).setDirectory(dir).call()) {
+      return git.getRepository();
+    } catch (GitAPIException gae) {
+      throw new IOException(gae);
+    }
+  }
+
+  /**
+   * Create a commit whose tree holds exactly 'files', without moving HEAD
+   *
+   * @param files Map of path to content
+   * @param time Commit time in seconds
+   */
+  public static ObjectId commit(Repository repository, Map<String,String> files, long time, ObjectId... parents) throws IOException {
+    PersonIdent ident = new PersonIdent(AUTHOR, new Date(time * 1000L), TimeZone.getTimeZone("UTC"));
+
+    try (ObjectInserter inserter = repository.newObjectInserter()) {
+      DirCache dc = DirCache.newInCore();
+      DirCacheBuilder builder = dc.builder();
+
+      for (Map.Entry<String,String> file: files.entrySet()) {
+        DirCacheEntry entry = new DirCacheEntry(file.getKey());
+        entry.setFileMode(FileMode.REGULAR_FILE);
+        entry.setObjectId(inserter.insert(Constants.OBJ_BLOB, file.getValue().getBytes(StandardCharsets.UTF_8)));
+        builder.add(entry);
+      }
+
+      builder.finish();
+
+      CommitBuilder cb = new CommitBuilder();
+      cb.setTreeId(dc.writeTree(inserter));
+      cb.setParentIds(parents);
+      cb.setAuthor(ident);
+      cb.setCommitter(ident);
+      cb.setMessage("Commit at " + time);
+
+      ObjectId commit = inserter.insert(cb);
+      inserter.flush();
+
+      return commit;
+    }
+  }
+
+  /**
+   * Move HEAD to a commit
+   */
+  public static void head(Repository repository, ObjectId commit) throws IOException {
+    RefUpdate ru = repository.updateRef(Constants.HEAD);
+    ru.setNewObjectId(commit);
+    ru.setForceUpdate(true);
+
+    switch (ru.update()) {
+      case NEW:
+      case FAST_FORWARD:
+      case FORCED:
+      case NO_CHANGE:
+        return;
+      default:
+        throw new IOException("Unable to move HEAD.");
+    }
+  }
+
+  /**
+   * Return the content of a file in a commit, or null if the commit has no such file
+   */
+  public static String read(Repository repository, ObjectId commit, String path) throws IOException {
+    try (RevWalk rwalk = new RevWalk(repository)) {
+      TreeWalk twalk = TreeWalk.forPath(repository, path, rwalk.parseCommit(commit).getTree());
+
+      if (null == twalk) {
+        return null;
+      }
+
+      try {
+        return new String(repository.open(twalk.getObjectId(0)).getBytes(), StandardCharsets.UTF_8);
+      } finally {
+        twalk.close();
+      }
+    }
+  }
+
+  /**
+   * Build a map of path to content from alternating paths and contents
+   */
+  public static Map<String,String> files(String... pairs) {
+    Map<String,String> files = new HashMap<String,String>();
+
+    for (int i = 0; i < pairs.length; i += 2) {
+      files.put(pairs[i], pairs[i + 1]);
+    }
+
+    return files;
+  }
+}
@@ -0,0 +1,120 @@
+//
+//   Copyright 2021  SenX S.A.S.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.ext.git;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Repository;
+import org.junit.Test;
+
+public class GitWriteQueueTest {
+
+  /**
+   * Caller submitting a write request from its own thread
+   */
+  private static class Writer extends Thread {
+    private final GitWriteQueue queue;
+    private final Repository repository;
+    private final Map<String,byte[]> changes = new LinkedHashMap<String,byte[]>();
+
+    private ObjectId commit = null;
+    private Exception error = null;
+
+    private Writer(GitWriteQueue queue, Repository repository, String path, String content) {
+      this.queue = queue;
+      this.repository = repository;
+      this.changes.put(path, null == content ? null : content.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Override
+    public void run() {
+      try {
+        this.commit = this.queue.commit(this.repository, this.changes, GitTests.AUTHOR, GitTests.AUTHOR, getName(), null, false);
+      } catch (Exception e) {
+        this.error = e;
+      }
+    }
+  }
+
+  @Test
+  public void testGroupedNoop() throws Exception {
+    Repository repository = GitTests.create("queue.git");
+
+    try {
+      Map<String,byte[]> changes = new LinkedHashMap<String,byte[]>();
+      changes.put("a", "1".getBytes(StandardCharsets.UTF_8));
+
+      final GitWriteQueue queue = GitWriteQueue.get("queue.git");
+      ObjectId first = queue.commit(repository, changes, GitTests.AUTHOR, GitTests.AUTHOR, "first", null, false);
+
+      //
+      // The writers queue their requests while a task holds the queue, they are then committed in a single group
+      //
+
+      final Writer[] writers = new Writer[] {
+        new Writer(queue, repository, "a", "1"),
+        new Writer(queue, repository, "b", "2"),
+        new Writer(queue, repository, "c", null),
+        new Writer(queue, repository, "d", "4"),
+      };
+
+      queue.exclusive(new Runnable() {
+        @Override
+        public void run() {
+          for (Writer writer: writers) {
+            writer.start();
+          }
+
+          // Writers wait on the queue once their request is pending
+          for (Writer writer: writers) {
+            while (Thread.State.WAITING != writer.getState()) {
+              Thread.yield();
+            }
+          }
+        }
+      });
+
+      for (Writer writer: writers) {
+        writer.join();
+        assertNull(writer.error);
+      }
+
+      ObjectId head = repository.resolve(Constants.HEAD);
+
+      // Requests which did not modify anything get no commit, the others get the group commit
+      assertNull(writers[0].commit);
+      assertEquals(head, writers[1].commit);
+      assertNull(writers[2].commit);
+      assertEquals(head, writers[3].commit);
+
+      assertEquals(first, repository.parseCommit(head).getParent(0));
+      assertNotNull(GitTests.read(repository, head, "b"));
+      assertNotNull(GitTests.read(repository, head, "d"));
+    } finally {
+      repository.close();
+    }
+  }
+}